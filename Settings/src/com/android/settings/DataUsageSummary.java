@@ -38,8 +38,6 @@ import static android.net.NetworkTemplate.buildTemplateMobileAll;
 import static android.net.NetworkTemplate.buildTemplateWifiWildcard;
 import static android.net.TrafficStats.GB_IN_BYTES;
 import static android.net.TrafficStats.MB_IN_BYTES;
-import static android.net.TrafficStats.UID_REMOVED;
-import static android.net.TrafficStats.UID_TETHERING;
 import static android.telephony.TelephonyManager.SIM_STATE_READY;
 import static android.text.format.DateUtils.FORMAT_ABBREV_MONTH;
 import static android.text.format.DateUtils.FORMAT_SHOW_DATE;
@@ -73,7 +71,6 @@ import android.net.INetworkStatsService;
 import android.net.INetworkStatsSession;
 import android.net.NetworkPolicy;
 import android.net.NetworkPolicyManager;
-import android.net.NetworkStats;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.net.TrafficStats;
@@ -96,7 +93,6 @@ import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.text.format.Time;
 import android.util.Log;
-import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -134,16 +130,17 @@ import com.android.settings.net.ChartData;
 import com.android.settings.net.ChartDataLoader;
 import com.android.settings.net.DataUsageMeteredSettings;
 import com.android.settings.net.NetworkPolicyEditor;
+import com.android.settings.net.NetworkStatsHistoryCache;
 import com.android.settings.net.SummaryForAllUidLoader;
 import com.android.settings.net.UidDetail;
 import com.android.settings.net.UidDetailProvider;
+import com.android.settings.net.UidSummary;
 import com.android.settings.widget.ChartDataUsageView;
 import com.android.settings.widget.ChartDataUsageView.DataUsageChartListener;
 import com.android.settings.widget.PieChartView;
 import com.google.android.collect.Lists;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 
@@ -191,6 +188,7 @@ public class DataUsageSummary extends Fragment {
     private ConnectivityManager mConnService;
 
     private INetworkStatsSession mStatsSession;
+    private NetworkStatsHistoryCache mHistoryCache;
 
     private static final String PREF_FILE = "data_usage";
     private static final String PREF_SHOW_WIFI = "show_wifi";
@@ -303,6 +301,7 @@ public class DataUsageSummary extends Fragment {
         } catch (RemoteException e) {
             throw new RuntimeException(e);
         }
+        mHistoryCache = new NetworkStatsHistoryCache();
 
         mTabHost = (TabHost) view.findViewById(android.R.id.tabhost);
         mTabsContainer = (ViewGroup) view.findViewById(R.id.tabs_container);
@@ -423,6 +422,7 @@ public class DataUsageSummary extends Fragment {
                     // wait a few seconds before kicking off
                     Thread.sleep(2 * DateUtils.SECOND_IN_MILLIS);
                     mStatsService.forceUpdate();
+                    mHistoryCache.invalidate();
                 } catch (InterruptedException e) {
                 } catch (RemoteException e) {
                 }
@@ -568,6 +568,8 @@ public class DataUsageSummary extends Fragment {
         mUidDetailProvider.clearCache();
         mUidDetailProvider = null;
 
+        mHistoryCache.invalidate();
+
         TrafficStats.closeQuietly(mStatsSession);
 
         if (this.isRemoving()) {
@@ -1200,7 +1202,7 @@ public class DataUsageSummary extends Fragment {
             ChartData>() {
         @Override
         public Loader<ChartData> onCreateLoader(int id, Bundle args) {
-            return new ChartDataLoader(getActivity(), mStatsSession, args);
+            return new ChartDataLoader(getActivity(), mStatsSession, mHistoryCache, args);
         }
 
         @Override
@@ -1227,24 +1229,22 @@ public class DataUsageSummary extends Fragment {
         }
     };
 
-    private final LoaderCallbacks<NetworkStats> mSummaryCallbacks = new LoaderCallbacks<
-            NetworkStats>() {
+    private final LoaderCallbacks<UidSummary> mSummaryCallbacks = new LoaderCallbacks<
+            UidSummary>() {
         @Override
-        public Loader<NetworkStats> onCreateLoader(int id, Bundle args) {
+        public Loader<UidSummary> onCreateLoader(int id, Bundle args) {
             return new SummaryForAllUidLoader(getActivity(), mStatsSession, args);
         }
 
         @Override
-        public void onLoadFinished(Loader<NetworkStats> loader, NetworkStats data) {
-            final int[] restrictedUids = mPolicyManager.getUidsWithPolicy(
-                    POLICY_REJECT_METERED_BACKGROUND);
-            mAdapter.bindStats(data, restrictedUids);
+        public void onLoadFinished(Loader<UidSummary> loader, UidSummary data) {
+            mAdapter.bindStats(data);
             updateEmptyVisible();
         }
 
         @Override
-        public void onLoaderReset(Loader<NetworkStats> loader) {
-            mAdapter.bindStats(null, new int[0]);
+        public void onLoaderReset(Loader<UidSummary> loader) {
+            mAdapter.bindStats(null);
             updateEmptyVisible();
         }
 
@@ -1476,8 +1476,7 @@ public class DataUsageSummary extends Fragment {
         private final UidDetailProvider mProvider;
         private final int mInsetSide;
 
-        private ArrayList<AppItem> mItems = Lists.newArrayList();
-        private long mLargest;
+        private UidSummary mSummary = UidSummary.EMPTY;
 
         public DataUsageAdapter(UidDetailProvider provider, int insetSide) {
             mProvider = checkNotNull(provider);
@@ -1485,76 +1484,26 @@ public class DataUsageSummary extends Fragment {
         }
 
         /**
-         * Bind the given {@link NetworkStats}, or {@code null} to clear list.
+         * Bind the given {@link UidSummary}, or {@code null} to clear list.
          */
-        public void bindStats(NetworkStats stats, int[] restrictedUids) {
-            mItems.clear();
-
-            final int currentUserId = ActivityManager.getCurrentUser();
-            final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
-
-            NetworkStats.Entry entry = null;
-            final int size = stats != null ? stats.size() : 0;
-            for (int i = 0; i < size; i++) {
-                entry = stats.getValues(i, entry);
-
-                // Decide how to collapse items together
-                final int uid = entry.uid;
-                final int collapseKey;
-                if (UserHandle.isApp(uid)) {
-                    if (UserHandle.getUserId(uid) == currentUserId) {
-                        collapseKey = uid;
-                    } else {
-                        collapseKey = UidDetailProvider.buildKeyForUser(UserHandle.getUserId(uid));
-                    }
-                } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
-                    collapseKey = uid;
-                } else {
-                    collapseKey = android.os.Process.SYSTEM_UID;
-                }
-
-                AppItem item = knownItems.get(collapseKey);
-                if (item == null) {
-                    item = new AppItem(collapseKey);
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
-                }
-                item.addUid(uid);
-                item.total += entry.rxBytes + entry.txBytes;
-            }
-
-            for (int uid : restrictedUids) {
-                // Only splice in restricted state for current user
-                if (UserHandle.getUserId(uid) != currentUserId) continue;
-
-                AppItem item = knownItems.get(uid);
-                if (item == null) {
-                    item = new AppItem(uid);
-                    item.total = -1;
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
-                }
-                item.restricted = true;
-            }
-
-            Collections.sort(mItems);
-            mLargest = (mItems.size() > 0) ? mItems.get(0).total : 0;
+        public void bindStats(UidSummary summary) {
+            mSummary = summary != null ? summary : UidSummary.EMPTY;
             notifyDataSetChanged();
         }
 
         @Override
         public int getCount() {
-            return mItems.size();
+            return mSummary.size;
         }
 
         @Override
         public Object getItem(int position) {
-            return mItems.get(position);
+            return mSummary.getItem(position);
         }
 
         @Override
         public long getItemId(int position) {
-            return mItems.get(position).key;
+            return mSummary.getKey(position);
         }
 
         @Override
@@ -1575,7 +1524,7 @@ public class DataUsageSummary extends Fragment {
                     android.R.id.progress);
 
             // kick off async load of app details
-            final AppItem item = mItems.get(position);
+            final AppItem item = mSummary.getItem(position);
             UidDetailTask.bindView(mProvider, item, convertView);
 
             if (item.restricted && item.total <= 0) {
@@ -1586,7 +1535,8 @@ public class DataUsageSummary extends Fragment {
                 progress.setVisibility(View.VISIBLE);
             }
 
-            final int percentTotal = mLargest != 0 ? (int) (item.total * 100 / mLargest) : 0;
+            final long largest = mSummary.getLargest();
+            final int percentTotal = largest != 0 ? (int) (item.total * 100 / largest) : 0;
             progress.setProgress(percentTotal);
 
             return convertView;
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.UserHandle;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Process-wide cache of package icons, bounded by the number of bytes of
+ * the decoded bitmaps rather than by the number of icons.  Icons are scaled
+ * down to the size of a list row when they are first loaded, and the same
+ * drawable is handed out for as long as the icon stays in the cache.
+ */
+public class IconCache {
+    private static final String TAG = "IconCache";
+    private static final boolean DEBUG = false;
+
+    // Fraction of the per-process memory class the cache may use.
+    private static final int MEMORY_CLASS_DIVISOR = 8;
+
+    private static IconCache sInstance;
+
+    private final Context mContext;
+    private final PackageManager mPm;
+    private final LruCache<String, BitmapDrawable> mCache;
+    // Keys currently in mCache, so that we can check for an icon without
+    // making it the most recently used one.  Synchronize on it.
+    private final HashSet<String> mKeys = new HashSet<String>();
+    private final int mIconSize;
+
+    public static IconCache getInstance(Context context) {
+        synchronized (IconCache.class) {
+            if (sInstance == null) {
+                sInstance = new IconCache(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private IconCache(Context context) {
+        mContext = context;
+        mPm = context.getPackageManager();
+        mIconSize = context.getResources().getDimensionPixelSize(
+                android.R.dimen.app_icon_size);
+        final ActivityManager am = (ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        final int maxBytes = am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_DIVISOR;
+        mCache = new LruCache<String, BitmapDrawable>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, BitmapDrawable value) {
+                final Bitmap bitmap = value.getBitmap();
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, BitmapDrawable oldValue,
+                    BitmapDrawable newValue) {
+                if (newValue == null) {
+                    synchronized (mKeys) {
+                        mKeys.remove(key);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the icon of the given application, loading it if needed.
+     */
+    public Drawable getApplicationIcon(ApplicationInfo info) {
+        final String key = buildKey(info.packageName, UserHandle.getUserId(info.uid), info.icon);
+        final Drawable icon = mCache.get(key);
+        return icon != null ? icon : put(key, info.loadIcon(mPm));
+    }
+
+    /**
+     * Returns the cached icon of the given application, or null if it isn't
+     * in the cache.
+     */
+    public Drawable peekApplicationIcon(ApplicationInfo info) {
+        return mCache.get(buildKey(info.packageName, UserHandle.getUserId(info.uid), info.icon));
+    }
+
+    /**
+     * Returns true if the icon of the given application is in the cache.
+     * Unlike {@link #peekApplicationIcon}, this doesn't count as a use of
+     * the icon.
+     */
+    public boolean containsApplicationIcon(ApplicationInfo info) {
+        final String key = buildKey(info.packageName, UserHandle.getUserId(info.uid), info.icon);
+        synchronized (mKeys) {
+            return mKeys.contains(key);
+        }
+    }
+
+    /**
+     * Returns a drawable resource of another package, as loaded from that
+     * package's resources.
+     */
+    public Drawable getPackageIcon(String packageName, int resId, Resources res) {
+        final String key = buildKey(packageName, UserHandle.myUserId(), resId);
+        final Drawable icon = mCache.get(key);
+        return icon != null ? icon : put(key, res.getDrawable(resId));
+    }
+
+    /**
+     * Returns true if loading another icon would not evict anything.
+     */
+    public boolean hasRoom() {
+        return mCache.size() + mIconSize * mIconSize * 4 <= mCache.maxSize();
+    }
+
+    /**
+     * Drops all icons of the given package, e.g. because it was updated.
+     */
+    public void invalidatePackage(String packageName) {
+        final String prefix = packageName + "/";
+        for (Map.Entry<String, BitmapDrawable> entry : mCache.snapshot().entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                mCache.remove(entry.getKey());
+            }
+        }
+    }
+
+    public int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    public int getMissCount() {
+        return mCache.missCount();
+    }
+
+    public int getEvictionCount() {
+        return mCache.evictionCount();
+    }
+
+    @Override
+    public String toString() {
+        return "IconCache{size=" + mCache.size() + "/" + mCache.maxSize()
+                + " hits=" + mCache.hitCount() + " misses=" + mCache.missCount()
+                + " evictions=" + mCache.evictionCount() + "}";
+    }
+
+    private String buildKey(String packageName, int userId, int resId) {
+        return packageName + "/" + userId + "/" + resId + "@"
+                + mContext.getResources().getDisplayMetrics().densityDpi;
+    }
+
+    private Drawable put(String key, Drawable drawable) {
+        final Bitmap bitmap = scaleToRow(drawable);
+        if (bitmap == null) {
+            return null;
+        }
+        final BitmapDrawable icon = new BitmapDrawable(mContext.getResources(), bitmap);
+        synchronized (mKeys) {
+            mKeys.add(key);
+        }
+        mCache.put(key, icon);
+        if (DEBUG) Log.d(TAG, "Loaded " + key + " " + this);
+        return icon;
+    }
+
+    private Bitmap scaleToRow(Drawable drawable) {
+        if (drawable == null) {
+            return null;
+        }
+        int width = drawable.getIntrinsicWidth();
+        int height = drawable.getIntrinsicHeight();
+        if (width <= 0 || height <= 0) {
+            width = height = mIconSize;
+        }
+        if (width > mIconSize || height > mIconSize) {
+            final float scale = Math.min((float) mIconSize / width, (float) mIconSize / height);
+            width = Math.max(1, Math.round(width * scale));
+            height = Math.max(1, Math.round(height * scale));
+        }
+        if (drawable instanceof BitmapDrawable) {
+            final Bitmap source = ((BitmapDrawable) drawable).getBitmap();
+            if (source.getWidth() == width && source.getHeight() == height) {
+                return source;
+            }
+            return Bitmap.createScaledBitmap(source, width, height, true);
+        }
+        final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(0, 0, width, height);
+        drawable.draw(canvas);
+        return bitmap;
+    }
+}
@@ -25,6 +25,8 @@ import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
 
+import com.android.settings.IconCache;
+
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
@@ -36,7 +38,6 @@ public class AuthenticatorHelper {
             = new HashMap<String, AuthenticatorDescription>();
     private AuthenticatorDescription[] mAuthDescs;
     private ArrayList<String> mEnabledAccountTypes = new ArrayList<String>();
-    private Map<String, Drawable> mAccTypeIconCache = new HashMap<String, Drawable>();
 
     public AuthenticatorHelper() {
     }
@@ -52,15 +53,12 @@ public class AuthenticatorHelper {
      */
     public Drawable getDrawableForType(Context context, final String accountType) {
         Drawable icon = null;
-        if (mAccTypeIconCache.containsKey(accountType)) {
-            return mAccTypeIconCache.get(accountType);
-        }
         if (mTypeToAuthDescription.containsKey(accountType)) {
             try {
                 AuthenticatorDescription desc = mTypeToAuthDescription.get(accountType);
                 Context authContext = context.createPackageContext(desc.packageName, 0);
-                icon = authContext.getResources().getDrawable(desc.iconId);
-                mAccTypeIconCache.put(accountType, icon);
+                icon = IconCache.getInstance(context).getPackageIcon(desc.packageName,
+                        desc.iconId, authContext.getResources());
             } catch (PackageManager.NameNotFoundException e) {
             } catch (Resources.NotFoundException e) {
             }
@@ -108,7 +106,6 @@ public class AuthenticatorHelper {
             accounts = AccountManager.get(context).getAccounts();
         }
         mEnabledAccountTypes.clear();
-        mAccTypeIconCache.clear();
         for (Account account: accounts) {
             if (!mEnabledAccountTypes.contains(account.type)) {
                 mEnabledAccountTypes.add(account.type);
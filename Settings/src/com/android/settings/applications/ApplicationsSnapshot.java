@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Compact on-disk copy of the {@link ApplicationsState.AppEntry} data that is
+ * expensive to recompute (labels and sizes), so that the first list shown
+ * after a cold start does not have to wait for every package to be resolved.
+ */
+class ApplicationsSnapshot {
+    static final String TAG = "ApplicationsSnapshot";
+    static final boolean DEBUG = false;
+
+    static final String FILE_NAME = "app_entries.snapshot";
+
+    private static final int MAGIC = 0x41505053; // 'APPS'
+    private static final int VERSION = 1;
+
+    /**
+     * Cached state of one package.  The apk modification time is used as the
+     * package's last update time: a record is only reused while it matches.
+     */
+    static class Record {
+        String packageName;
+        long lastUpdateTime;
+        int flags;
+        String label;
+        String normalizedLabel;
+        long size;
+        long internalSize;
+        long externalSize;
+        long cacheSize;
+        long codeSize;
+        long dataSize;
+        long externalCodeSize;
+        long externalDataSize;
+        long externalCacheSize;
+    }
+
+    final AtomicFile mFile;
+
+    ApplicationsSnapshot(File dir) {
+        mFile = new AtomicFile(new File(dir, FILE_NAME));
+    }
+
+    /**
+     * Reads the snapshot written for the given locale, returning a map from
+     * package name to record.  Returns null if there is no usable snapshot.
+     */
+    HashMap<String, Record> read(String locale) {
+        final File file = mFile.getBaseFile();
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream fis = null;
+        try {
+            fis = mFile.openRead();
+            final FileChannel channel = fis.getChannel();
+            final MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                if (DEBUG) Log.i(TAG, "Ignoring snapshot with unknown version");
+                return null;
+            }
+            if (!locale.equals(readString(buf))) {
+                if (DEBUG) Log.i(TAG, "Ignoring snapshot for different locale");
+                return null;
+            }
+            final int count = buf.getInt();
+            final HashMap<String, Record> records = new HashMap<String, Record>(count);
+            for (int i=0; i<count; i++) {
+                Record r = new Record();
+                r.packageName = readString(buf);
+                r.lastUpdateTime = buf.getLong();
+                r.flags = buf.getInt();
+                r.label = readString(buf);
+                r.normalizedLabel = readString(buf);
+                r.size = buf.getLong();
+                r.internalSize = buf.getLong();
+                r.externalSize = buf.getLong();
+                r.cacheSize = buf.getLong();
+                r.codeSize = buf.getLong();
+                r.dataSize = buf.getLong();
+                r.externalCodeSize = buf.getLong();
+                r.externalDataSize = buf.getLong();
+                r.externalCacheSize = buf.getLong();
+                records.put(r.packageName, r);
+            }
+            if (DEBUG) Log.i(TAG, "Read " + count + " entries from snapshot");
+            return records;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read snapshot", e);
+        } catch (BufferUnderflowException e) {
+            Log.w(TAG, "Truncated snapshot", e);
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return null;
+    }
+
+    void write(String locale, ArrayList<Record> records) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, locale);
+            out.writeInt(records.size());
+            for (int i=0; i<records.size(); i++) {
+                Record r = records.get(i);
+                writeString(out, r.packageName);
+                out.writeLong(r.lastUpdateTime);
+                out.writeInt(r.flags);
+                writeString(out, r.label);
+                writeString(out, r.normalizedLabel);
+                out.writeLong(r.size);
+                out.writeLong(r.internalSize);
+                out.writeLong(r.externalSize);
+                out.writeLong(r.cacheSize);
+                out.writeLong(r.codeSize);
+                out.writeLong(r.dataSize);
+                out.writeLong(r.externalCodeSize);
+                out.writeLong(r.externalDataSize);
+                out.writeLong(r.externalCacheSize);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            if (DEBUG) Log.i(TAG, "Wrote " + records.size() + " entries to snapshot");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write snapshot", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+
+    private static String readString(MappedByteBuffer buf) throws UnsupportedEncodingException {
+        final int len = buf.getInt();
+        if (len < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = str.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
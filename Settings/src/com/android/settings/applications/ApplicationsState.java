@@ -22,15 +22,22 @@ import android.os.UserHandle;
 import android.text.format.Formatter;
 import android.util.Log;
 
+import com.android.settings.IconCache;
+
 import java.io.File;
 import java.text.Collator;
 import java.text.Normalizer;
 import java.text.Normalizer.Form;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 /**
@@ -51,6 +58,50 @@ public class ApplicationsState {
         public void onAllSizesComputed();
     }
 
+    /**
+     * Optional extension of {@link Callbacks}.  Sessions whose callbacks
+     * implement this keep their filtered, sorted list between rebuilds and
+     * only re-filter and re-sort the packages that changed since the last
+     * one, reporting through {@link #onRebuildDelta} whether anything moved.
+     */
+    public static interface DeltaCallbacks extends Callbacks {
+        public void onRebuildDelta(ArrayList<AppEntry> apps, ChangeSet changes);
+    }
+
+    /**
+     * Summarizes how a session's list changed during an incremental rebuild:
+     * how many entries were removed, inserted, or moved to a new position.
+     * Only the counts are kept; callbacks that see a non-empty change set
+     * should treat the new list as a full rebuild.
+     */
+    public static class ChangeSet {
+        private int mRemovedCount;
+        private int mInsertedCount;
+        private int mMovedCount;
+
+        public boolean isEmpty() {
+            return mRemovedCount == 0 && mInsertedCount == 0 && mMovedCount == 0;
+        }
+
+        public int getRemovedCount() {
+            return mRemovedCount;
+        }
+
+        public int getInsertedCount() {
+            return mInsertedCount;
+        }
+
+        public int getMovedCount() {
+            return mMovedCount;
+        }
+
+        @Override
+        public String toString() {
+            return "ChangeSet{removed=" + mRemovedCount + " inserted=" + mInsertedCount
+                    + " moved=" + mMovedCount + "}";
+        }
+    }
+
     public static interface AppFilter {
         public void init();
         public boolean filterApp(ApplicationInfo info);
@@ -59,6 +110,14 @@ public class ApplicationsState {
     static final int SIZE_UNKNOWN = -1;
     static final int SIZE_INVALID = -2;
 
+    // How many package size requests may be outstanding at once by default,
+    // and how long to wait for one before giving up on it and retrying.
+    static final int DEFAULT_MAX_SIZES_IN_FLIGHT = 4;
+    static final long SIZE_TIMEOUT_MS = 20*1000;
+
+    // Most recently displayed packages, whose sizes are computed first.
+    static final int MAX_PRIORITY_SIZES = 32;
+
     static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
 
@@ -106,7 +165,6 @@ public class ApplicationsState {
 
         // Need to synchronize on 'this' for the following.
         ApplicationInfo info;
-        Drawable icon;
         String sizeStr;
         String internalSizeStr;
         String externalSizeStr;
@@ -115,17 +173,72 @@ public class ApplicationsState {
 
         String normalizedLabel;
 
-        AppEntry(Context context, ApplicationInfo info, long id) {
+        AppEntry(Context context, ApplicationInfo info, long id,
+                ApplicationsSnapshot.Record cached) {
             apkFile = new File(info.sourceDir);
             this.id = id;
             this.info = info;
             this.size = SIZE_UNKNOWN;
             this.sizeStale = true;
+            if (cached != null) {
+                restore(context, cached);
+            }
             ensureLabel(context);
         }
+
+        // Takes the label and sizes from a snapshot record, as long as the
+        // package has not been updated since the record was written.  The
+        // size is still left stale so that it gets refreshed in the background.
+        void restore(Context context, ApplicationsSnapshot.Record r) {
+            if (r.lastUpdateTime == 0 || r.lastUpdateTime != apkFile.lastModified()) {
+                return;
+            }
+            this.mounted = true;
+            this.label = r.label;
+            this.normalizedLabel = r.normalizedLabel;
+            this.size = r.size;
+            this.internalSize = r.internalSize;
+            this.externalSize = r.externalSize;
+            this.cacheSize = r.cacheSize;
+            this.codeSize = r.codeSize;
+            this.dataSize = r.dataSize;
+            this.externalCodeSize = r.externalCodeSize;
+            this.externalDataSize = r.externalDataSize;
+            this.externalCacheSize = r.externalCacheSize;
+            if (size >= 0) {
+                this.sizeStr = Formatter.formatFileSize(context, size);
+            }
+            if (internalSize >= 0) {
+                this.internalSizeStr = Formatter.formatFileSize(context, internalSize);
+            }
+            if (externalSize >= 0) {
+                this.externalSizeStr = Formatter.formatFileSize(context, externalSize);
+            }
+        }
+
+        ApplicationsSnapshot.Record toRecord() {
+            ApplicationsSnapshot.Record r = new ApplicationsSnapshot.Record();
+            r.packageName = info.packageName;
+            r.flags = info.flags;
+            r.label = label;
+            r.normalizedLabel = getNormalizedLabel();
+            r.size = size;
+            r.internalSize = internalSize;
+            r.externalSize = externalSize;
+            r.cacheSize = cacheSize;
+            r.codeSize = codeSize;
+            r.dataSize = dataSize;
+            r.externalCodeSize = externalCodeSize;
+            r.externalDataSize = externalDataSize;
+            r.externalCacheSize = externalCacheSize;
+            return r;
+        }
         
-        void ensureLabel(Context context) {
+        // Returns true if the label changed, in which case sessions that
+        // sorted the entry by its old label need to be told about it.
+        boolean ensureLabel(Context context) {
             if (this.label == null || !this.mounted) {
+                String oldLabel = this.label;
                 if (!this.apkFile.exists()) {
                     this.mounted = false;
                     this.label = info.packageName;
@@ -134,29 +247,60 @@ public class ApplicationsState {
                     CharSequence label = info.loadLabel(context.getPackageManager());
                     this.label = label != null ? label.toString() : info.packageName;
                 }
+                if (oldLabel != null && !oldLabel.equals(this.label)) {
+                    this.normalizedLabel = null;
+                    return true;
+                }
             }
+            return false;
         }
         
-        boolean ensureIconLocked(Context context, PackageManager pm) {
-            if (this.icon == null) {
-                if (this.apkFile.exists()) {
-                    this.icon = this.info.loadIcon(pm);
-                    return true;
-                } else {
-                    this.mounted = false;
-                    this.icon = context.getResources().getDrawable(
-                            com.android.internal.R.drawable.sym_app_on_sd_unavailable_icon);
-                }
-            } else if (!this.mounted) {
-                // If the app wasn't mounted but is now mounted, reload
-                // its icon.
-                if (this.apkFile.exists()) {
-                    this.mounted = true;
-                    this.icon = this.info.loadIcon(pm);
-                    return true;
+        // Icons live in the shared IconCache rather than in the entry, so
+        // that the number of installed apps doesn't decide how many of them
+        // stay in memory.
+        Drawable getIconLocked(Context context) {
+            final IconCache cache = IconCache.getInstance(context);
+            if (this.mounted) {
+                Drawable icon = cache.peekApplicationIcon(info);
+                if (icon != null) {
+                    return icon;
                 }
             }
-            return false;
+            if (this.apkFile.exists()) {
+                // If the app wasn't mounted but is now mounted, this
+                // reloads its icon.
+                this.mounted = true;
+                return cache.getApplicationIcon(info);
+            }
+            this.mounted = false;
+            return context.getResources().getDrawable(
+                    com.android.internal.R.drawable.sym_app_on_sd_unavailable_icon);
+        }
+
+        // Returns the icon if it can be had without touching the disk: the
+        // cached one, or the unavailable icon if the app wasn't mounted last
+        // we looked.  Returns null if the icon still needs to be loaded.
+        Drawable peekIconLocked(Context context) {
+            if (this.mounted) {
+                return IconCache.getInstance(context).peekApplicationIcon(info);
+            }
+            return context.getResources().getDrawable(
+                    com.android.internal.R.drawable.sym_app_on_sd_unavailable_icon);
+        }
+
+        // Loads the icon into the cache ahead of time.  Returns true if it
+        // wasn't there yet and could be loaded.
+        boolean ensureIconLocked(Context context) {
+            final IconCache cache = IconCache.getInstance(context);
+            if (this.mounted && cache.containsApplicationIcon(info)) {
+                return false;
+            }
+            if (!this.apkFile.exists()) {
+                this.mounted = false;
+                return false;
+            }
+            this.mounted = true;
+            return cache.getApplicationIcon(info) != null;
         }
     }
 
@@ -253,9 +397,22 @@ public class ApplicationsState {
     final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
     List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
     long mCurId = 1;
-    String mCurComputingSizePkg;
     boolean mSessionsChanged;
 
+    // Package size computation.  Synchronize on mEntriesMap, except for
+    // mPrioritySizes which is only touched by the background thread.
+    final HashMap<String, Long> mSizesInFlight = new HashMap<String, Long>();
+    final LinkedHashSet<String> mPrioritySizes = new LinkedHashSet<String>();
+    int mMaxSizesInFlight = DEFAULT_MAX_SIZES_IN_FLIGHT;
+    final SizeStats mSizeStats = new SizeStats();
+
+    // Entries saved by the last run, consumed as the entries are created.
+    // Synchronize on mEntriesMap.
+    final ApplicationsSnapshot mSnapshot;
+    HashMap<String, ApplicationsSnapshot.Record> mSnapshotRecords;
+    boolean mSnapshotRead;
+    boolean mSnapshotDirty;
+
     // Temporary for dispatching session callbacks.  Only touched by main thread.
     final ArrayList<Session> mActiveSessions = new ArrayList<Session>();
 
@@ -346,7 +503,18 @@ public class ApplicationsState {
                 case MSG_REBUILD_COMPLETE: {
                     Session s = (Session)msg.obj;
                     if (mActiveSessions.contains(s)) {
-                        s.mCallbacks.onRebuildComplete(s.mLastAppList);
+                        ArrayList<AppEntry> apps;
+                        ChangeSet changes;
+                        synchronized (s.mRebuildSync) {
+                            apps = s.mLastAppList;
+                            changes = s.mLastChanges;
+                            s.mLastChanges = null;
+                        }
+                        if (changes != null && s.mDeltaCallbacks != null) {
+                            s.mDeltaCallbacks.onRebuildDelta(apps, changes);
+                        } else {
+                            s.mCallbacks.onRebuildComplete(apps);
+                        }
                     }
                 } break;
                 case MSG_PACKAGE_LIST_CHANGED: {
@@ -399,6 +567,7 @@ public class ApplicationsState {
     private ApplicationsState(Application app) {
         mContext = app;
         mPm = mContext.getPackageManager();
+        mSnapshot = new ApplicationsSnapshot(mContext.getCacheDir());
         mThread = new HandlerThread("ApplicationsState.Loader",
                 Process.THREAD_PRIORITY_BACKGROUND);
         mThread.start();
@@ -436,6 +605,7 @@ public class ApplicationsState {
 
     public class Session {
         final Callbacks mCallbacks;
+        final DeltaCallbacks mDeltaCallbacks;
         boolean mResumed;
 
         // Rebuilding of app list.  Synchronized on mRebuildSync.
@@ -446,9 +616,24 @@ public class ApplicationsState {
         Comparator<AppEntry> mRebuildComparator;
         ArrayList<AppEntry> mRebuildResult;
         ArrayList<AppEntry> mLastAppList;
+        // Changes since the last list delivered to the callbacks, or null if
+        // the last list should be delivered as a full rebuild.
+        ChangeSet mLastChanges;
+        boolean mDroppedChanges;
+
+        // State for incremental rebuilds; only touched by the background
+        // thread, except for mPendingPackages and mNeedFullRebuild which are
+        // synchronized on mEntriesMap.
+        ArrayList<AppEntry> mSortedApps;
+        AppFilter mSortedFilter;
+        Comparator<AppEntry> mSortedComparator;
+        final HashSet<String> mPendingPackages = new HashSet<String>();
+        boolean mNeedFullRebuild = true;
 
         Session(Callbacks callbacks) {
             mCallbacks = callbacks;
+            mDeltaCallbacks = callbacks instanceof DeltaCallbacks
+                    ? (DeltaCallbacks)callbacks : null;
         }
 
         public void resume() {
@@ -533,10 +718,30 @@ public class ApplicationsState {
             if (filter != null) {
                 filter.init();
             }
-            
+
+            if (mDeltaCallbacks != null) {
+                HashSet<String> pending = null;
+                synchronized (mEntriesMap) {
+                    if (!mNeedFullRebuild && mSortedApps != null
+                            && filter == mSortedFilter && comparator == mSortedComparator) {
+                        pending = new HashSet<String>(mPendingPackages);
+                        mPendingPackages.clear();
+                    }
+                }
+                if (pending != null) {
+                    ChangeSet changes = applyPendingChanges(pending, filter, comparator);
+                    publishRebuild(new ArrayList<AppEntry>(mSortedApps), changes);
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    return;
+                }
+            }
+
             List<ApplicationInfo> apps;
             synchronized (mEntriesMap) {
                 apps = new ArrayList<ApplicationInfo>(mApplications);
+                // Everything pending so far is covered by this rebuild.
+                mPendingPackages.clear();
+                mNeedFullRebuild = false;
             }
 
             ArrayList<AppEntry> filteredApps = new ArrayList<AppEntry>();
@@ -547,7 +752,9 @@ public class ApplicationsState {
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
                         AppEntry entry = getEntryLocked(info);
-                        entry.ensureLabel(mContext);
+                        if (entry.ensureLabel(mContext)) {
+                            noteLabelChangedLocked(info.packageName);
+                        }
                         if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
                         filteredApps.add(entry);
                         if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
@@ -557,23 +764,120 @@ public class ApplicationsState {
 
             Collections.sort(filteredApps, comparator);
 
+            if (mDeltaCallbacks != null) {
+                mSortedApps = new ArrayList<AppEntry>(filteredApps);
+                mSortedFilter = filter;
+                mSortedComparator = comparator;
+            }
+
+            publishRebuild(filteredApps, null);
+
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        }
+
+        private void publishRebuild(ArrayList<AppEntry> apps, ChangeSet changes) {
             synchronized (mRebuildSync) {
-                if (!mRebuildRequested) {
-                    mLastAppList = filteredApps;
+                if (mRebuildRequested) {
+                    // Superseded by a newer request; make sure whatever it
+                    // publishes isn't taken as a delta against a list the
+                    // callbacks never saw.
+                    if (changes == null || !changes.isEmpty()) {
+                        mDroppedChanges = true;
+                    }
+                } else {
+                    final boolean pending = mMainHandler.hasMessages(
+                            MainHandler.MSG_REBUILD_COMPLETE, this);
+                    if (mDroppedChanges) {
+                        mDroppedChanges = false;
+                        changes = null;
+                    }
+                    if (changes != null && pending && mLastChanges != null) {
+                        // The previous delta hasn't been delivered yet; only an
+                        // empty change can be folded into it.
+                        if (changes.isEmpty()) {
+                            changes = mLastChanges;
+                        } else if (!mLastChanges.isEmpty()) {
+                            changes = null;
+                        }
+                    } else if (pending) {
+                        changes = null;
+                    }
+                    mLastAppList = apps;
+                    mLastChanges = changes;
                     if (!mRebuildAsync) {
-                        mRebuildResult = filteredApps;
+                        mRebuildResult = apps;
                         mRebuildSync.notifyAll();
-                    } else {
-                        if (!mMainHandler.hasMessages(MainHandler.MSG_REBUILD_COMPLETE, this)) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_REBUILD_COMPLETE, this);
-                            mMainHandler.sendMessage(msg);
+                    } else if (!pending) {
+                        if (changes != null && changes.isEmpty()) {
+                            // Nothing the callbacks need to hear about.
+                            return;
                         }
+                        Message msg = mMainHandler.obtainMessage(
+                                MainHandler.MSG_REBUILD_COMPLETE, this);
+                        mMainHandler.sendMessage(msg);
                     }
                 }
             }
+        }
 
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        /**
+         * Re-filters and re-sorts only the given packages in mSortedApps,
+         * using binary search to find their new positions.
+         */
+        private ChangeSet applyPendingChanges(HashSet<String> pending, AppFilter filter,
+                Comparator<AppEntry> comparator) {
+            final ArrayList<AppEntry> list = mSortedApps;
+            final ChangeSet changes = new ChangeSet();
+            if (pending.isEmpty()) {
+                return changes;
+            }
+            if (DEBUG) Log.i(TAG, "Applying " + pending.size() + " changes...");
+
+            // Take out the old entries of everything that changed.
+            final HashMap<String, Integer> oldPositions = new HashMap<String, Integer>();
+            for (int i=list.size()-1; i>=0; i--) {
+                String pkgName = list.get(i).info.packageName;
+                if (pending.contains(pkgName)) {
+                    oldPositions.put(pkgName, i);
+                    list.remove(i);
+                }
+            }
+
+            // And put back the ones that still pass the filter.
+            for (String pkgName : pending) {
+                AppEntry entry = null;
+                synchronized (mEntriesMap) {
+                    int idx = indexOfApplicationInfoLocked(pkgName);
+                    if (idx >= 0) {
+                        ApplicationInfo info = mApplications.get(idx);
+                        if (filter == null || filter.filterApp(info)) {
+                            entry = getEntryLocked(info);
+                            if (entry.ensureLabel(mContext)) {
+                                noteLabelChangedLocked(pkgName);
+                            }
+                        }
+                    }
+                }
+                if (entry != null) {
+                    int pos = Collections.binarySearch(list, entry, comparator);
+                    list.add(pos >= 0 ? pos : -(pos + 1), entry);
+                }
+            }
+
+            for (int i=0; i<list.size(); i++) {
+                String pkgName = list.get(i).info.packageName;
+                if (pending.contains(pkgName)) {
+                    Integer oldPos = oldPositions.remove(pkgName);
+                    if (oldPos == null) {
+                        changes.mInsertedCount++;
+                    } else if (oldPos != i) {
+                        changes.mMovedCount++;
+                    }
+                }
+            }
+            changes.mRemovedCount = oldPositions.size();
+            if (DEBUG) Log.i(TAG, "Applied changes: " + changes);
+            return changes;
         }
 
         public void release() {
@@ -606,6 +910,11 @@ public class ApplicationsState {
             mApplications = new ArrayList<ApplicationInfo>();
         }
 
+        // The package list was re-queried, so sessions can't rely on deltas.
+        for (int i=0; i<mSessions.size(); i++) {
+            mSessions.get(i).mNeedFullRebuild = true;
+        }
+
         if (mInterestingConfigChanges.applyNewConfig(mContext.getResources())) {
             // If an interesting part of the configuration has changed, we
             // should completely reload the app entries.
@@ -617,6 +926,13 @@ public class ApplicationsState {
             }
         }
 
+        if (!mSnapshotRead) {
+            // First start of this process: pick up what the last one knew,
+            // so entries can be created without loading every label.
+            mSnapshotRead = true;
+            mSnapshotRecords = mSnapshot.read(getSnapshotLocale());
+        }
+
         for (int i=0; i<mApplications.size(); i++) {
             final ApplicationInfo info = mApplications.get(i);
             // Need to trim out any applications that are disabled by
@@ -632,7 +948,7 @@ public class ApplicationsState {
                 entry.info = info;
             }
         }
-        mCurComputingSizePkg = null;
+        mSizesInFlight.clear();
         if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
             mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
         }
@@ -654,6 +970,27 @@ public class ApplicationsState {
         }
     }
 
+    // Records a package whose entry may need to be re-filtered or re-sorted
+    // by sessions doing incremental rebuilds.
+    void notePackageChangedLocked(String pkgName) {
+        for (int i=0; i<mSessions.size(); i++) {
+            Session s = mSessions.get(i);
+            if (s.mDeltaCallbacks != null) {
+                s.mPendingPackages.add(pkgName);
+            }
+        }
+    }
+
+    // The label is the sort key of most sessions, so other sessions may now
+    // have the entry in the wrong place.
+    void noteLabelChangedLocked(String pkgName) {
+        mSnapshotDirty = true;
+        notePackageChangedLocked(pkgName);
+        if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
+            mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
+        }
+    }
+
     AppEntry getEntry(String packageName) {
         if (DEBUG_LOCKING) Log.v(TAG, "getEntry about to acquire lock...");
         synchronized (mEntriesMap) {
@@ -672,15 +1009,32 @@ public class ApplicationsState {
         }
     }
     
-    void ensureIcon(AppEntry entry) {
-        if (entry.icon != null) {
-            return;
-        }
+    Drawable getIcon(AppEntry entry) {
         synchronized (entry) {
-            entry.ensureIconLocked(mContext, mPm);
+            return entry.getIconLocked(mContext);
         }
     }
     
+    /**
+     * Returns the icon of the entry if it is already loaded, otherwise
+     * returns null and loads it in the background, reporting it through
+     * {@link Callbacks#onPackageIconChanged}.  Unlike {@link #getIcon}, this
+     * never touches the disk, so it can be used while binding list rows.
+     */
+    Drawable peekIcon(AppEntry entry) {
+        final Drawable icon;
+        synchronized (entry) {
+            icon = entry.peekIconLocked(mContext);
+            if (icon != null && entry.mounted) {
+                return icon;
+            }
+        }
+        // Also check again for apps that weren't mounted, in case they are now.
+        Message msg = mBackgroundHandler.obtainMessage(BackgroundHandler.MSG_LOAD_ICON, entry);
+        mBackgroundHandler.sendMessage(msg);
+        return icon;
+    }
+
     void requestSize(String packageName) {
         if (DEBUG_LOCKING) Log.v(TAG, "requestSize about to acquire lock...");
         synchronized (mEntriesMap) {
@@ -692,6 +1046,38 @@ public class ApplicationsState {
         }
     }
 
+    /**
+     * Asks for the size of the given package to be computed ahead of the
+     * others, typically because it is currently shown on screen.
+     */
+    void prioritizeSize(String packageName) {
+        // Called while binding list rows, so leave the bookkeeping to the
+        // background thread rather than waiting on mEntriesMap here.
+        Message msg = mBackgroundHandler.obtainMessage(
+                BackgroundHandler.MSG_PRIORITIZE_SIZE, packageName);
+        mBackgroundHandler.sendMessage(msg);
+    }
+
+    /**
+     * Sets how many package size requests may be outstanding at once.
+     */
+    void setMaxSizesInFlight(int max) {
+        synchronized (mEntriesMap) {
+            mMaxSizesInFlight = Math.max(1, max);
+        }
+        mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_SIZES);
+    }
+
+    /**
+     * Returns a copy of the size computation timings: packages per second
+     * and latency percentiles.
+     */
+    SizeStats getSizeStats() {
+        synchronized (mEntriesMap) {
+            return new SizeStats(mSizeStats);
+        }
+    }
+
     long sumCacheSizes() {
         long sum = 0;
         if (DEBUG_LOCKING) Log.v(TAG, "sumCacheSizes about to acquire lock...");
@@ -733,6 +1119,7 @@ public class ApplicationsState {
                 }
                 ApplicationInfo info = mPm.getApplicationInfo(pkgName, mRetrieveFlags);
                 mApplications.add(info);
+                notePackageChangedLocked(pkgName);
                 if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
                     mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
                 }
@@ -756,8 +1143,11 @@ public class ApplicationsState {
                 if (entry != null) {
                     mEntriesMap.remove(pkgName);
                     mAppEntries.remove(entry);
+                    mSnapshotDirty = true;
                 }
+                IconCache.getInstance(mContext).invalidatePackage(pkgName);
                 mApplications.remove(idx);
+                notePackageChangedLocked(pkgName);
                 if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
                     mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
                 }
@@ -776,9 +1166,17 @@ public class ApplicationsState {
         if (DEBUG) Log.i(TAG, "Looking up entry of pkg " + info.packageName + ": " + entry);
         if (entry == null) {
             if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
-            entry = new AppEntry(mContext, info, mCurId++);
+            ApplicationsSnapshot.Record cached = null;
+            if (mSnapshotRecords != null) {
+                cached = mSnapshotRecords.remove(info.packageName);
+                if (mSnapshotRecords.isEmpty()) {
+                    mSnapshotRecords = null;
+                }
+            }
+            entry = new AppEntry(mContext, info, mCurId++, cached);
             mEntriesMap.put(info.packageName, entry);
             mAppEntries.add(entry);
+            mSnapshotDirty = true;
         } else if (entry.info != info) {
             entry.info = info;
         }
@@ -805,6 +1203,134 @@ public class ApplicationsState {
         return SIZE_INVALID;
     }
 
+    /**
+     * Timing of package size computation, for diagnostics.  Latencies are
+     * kept for the last {@link #MAX_SAMPLES} packages.
+     */
+    static class SizeStats {
+        static final int MAX_SAMPLES = 128;
+
+        final long[] mLatencies;
+        int mNumSamples;
+        int mNextSample;
+        int mCompleted;
+        int mTimedOut;
+        long mPassStart;
+        long mPassEnd;
+        int mPassCompleted;
+
+        SizeStats() {
+            mLatencies = new long[MAX_SAMPLES];
+        }
+
+        SizeStats(SizeStats other) {
+            mLatencies = other.mLatencies.clone();
+            mNumSamples = other.mNumSamples;
+            mNextSample = other.mNextSample;
+            mCompleted = other.mCompleted;
+            mTimedOut = other.mTimedOut;
+            mPassStart = other.mPassStart;
+            mPassEnd = other.mPassEnd;
+            mPassCompleted = other.mPassCompleted;
+        }
+
+        void startPass(long now) {
+            mPassStart = now;
+            mPassEnd = 0;
+            mPassCompleted = 0;
+        }
+
+        void endPass(long now) {
+            mPassEnd = now;
+        }
+
+        void noteCompleted(long latency) {
+            mCompleted++;
+            mPassCompleted++;
+            mLatencies[mNextSample] = latency;
+            mNextSample = (mNextSample + 1) % MAX_SAMPLES;
+            if (mNumSamples < MAX_SAMPLES) {
+                mNumSamples++;
+            }
+        }
+
+        void noteTimedOut() {
+            mTimedOut++;
+        }
+
+        /**
+         * Packages computed per second during the current or last pass.
+         */
+        float getPackagesPerSecond() {
+            if (mPassStart == 0) {
+                return 0;
+            }
+            long end = mPassEnd != 0 ? mPassEnd : SystemClock.uptimeMillis();
+            long elapsed = end - mPassStart;
+            return elapsed > 0 ? mPassCompleted * 1000f / elapsed : 0;
+        }
+
+        /**
+         * Returns the given percentile (0-100) of the recent size observer
+         * latencies in milliseconds.
+         */
+        long getLatencyPercentile(int percentile) {
+            if (mNumSamples == 0) {
+                return 0;
+            }
+            long[] sorted = new long[mNumSamples];
+            System.arraycopy(mLatencies, 0, sorted, 0, mNumSamples);
+            Arrays.sort(sorted);
+            int idx = (mNumSamples - 1) * percentile / 100;
+            return sorted[idx];
+        }
+
+        @Override
+        public String toString() {
+            return "SizeStats{completed=" + mCompleted + " timedOut=" + mTimedOut
+                    + " pkgs/s=" + getPackagesPerSecond()
+                    + " p50=" + getLatencyPercentile(50) + "ms"
+                    + " p90=" + getLatencyPercentile(90) + "ms"
+                    + " p99=" + getLatencyPercentile(99) + "ms}";
+        }
+    }
+
+    private String getSnapshotLocale() {
+        return String.valueOf(mContext.getResources().getConfiguration().locale);
+    }
+
+    /**
+     * Called on the background thread once all sizes have been computed, to
+     * save the current entries for the next cold start.
+     */
+    void writeSnapshot() {
+        final ArrayList<ApplicationsSnapshot.Record> records;
+        final ArrayList<File> apkFiles;
+        synchronized (mEntriesMap) {
+            if (!mSnapshotDirty) {
+                return;
+            }
+            mSnapshotDirty = false;
+            records = new ArrayList<ApplicationsSnapshot.Record>(mAppEntries.size());
+            apkFiles = new ArrayList<File>(mAppEntries.size());
+            for (int i=0; i<mAppEntries.size(); i++) {
+                AppEntry entry = mAppEntries.get(i);
+                synchronized (entry) {
+                    if (!entry.mounted || entry.label == null) {
+                        continue;
+                    }
+                    records.add(entry.toRecord());
+                    apkFiles.add(entry.apkFile);
+                }
+            }
+        }
+        // Hit the file system outside of the lock.
+        for (int i=0; i<records.size(); i++) {
+            records.get(i).lastUpdateTime = apkFiles.get(i).lastModified();
+        }
+        mSnapshot.write(getSnapshotLocale(), records);
+    }
+
     private String getSizeStr(long size) {
         if (size >= 0) {
             return Formatter.formatFileSize(mContext, size);
@@ -819,6 +1345,9 @@ public class ApplicationsState {
         static final int MSG_LOAD_ENTRIES = 2;
         static final int MSG_LOAD_ICONS = 3;
         static final int MSG_LOAD_SIZES = 4;
+        static final int MSG_SIZE_TIMEOUT = 5;
+        static final int MSG_PRIORITIZE_SIZE = 6;
+        static final int MSG_LOAD_ICON = 7;
 
         boolean mRunning;
 
@@ -863,14 +1392,18 @@ public class ApplicationsState {
                             }
                         }
                         if (sizeChanged) {
+                            mSnapshotDirty = true;
+                            notePackageChangedLocked(stats.packageName);
                             Message msg = mMainHandler.obtainMessage(
                                     MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
                             mMainHandler.sendMessage(msg);
                         }
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
+                    Long start = mSizesInFlight.remove(stats.packageName);
+                    if (start != null) {
+                        mSizeStats.noteCompleted(SystemClock.uptimeMillis() - start);
+                    }
+                    if (mSizesInFlight.size() < mMaxSizesInFlight) {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
@@ -882,6 +1415,31 @@ public class ApplicationsState {
             super(looper);
         }
 
+        boolean needsSizeLocked(AppEntry entry, long now) {
+            if (entry.size != SIZE_UNKNOWN && !entry.sizeStale) {
+                return false;
+            }
+            if (mSizesInFlight.containsKey(entry.info.packageName)) {
+                return false;
+            }
+            return entry.sizeLoadStart == 0 || entry.sizeLoadStart < (now - SIZE_TIMEOUT_MS);
+        }
+
+        void startSizeLocked(AppEntry entry, long now) {
+            if (!mRunning) {
+                mRunning = true;
+                Message m = mMainHandler.obtainMessage(
+                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                mMainHandler.sendMessage(m);
+            }
+            if (mSizeStats.mPassStart == 0 || mSizeStats.mPassEnd != 0) {
+                mSizeStats.startPass(now);
+            }
+            entry.sizeLoadStart = now;
+            mSizesInFlight.put(entry.info.packageName, now);
+            mPm.getPackageSizeInfo(entry.info.packageName, mStatsObserver);
+        }
+
         @Override
         public void handleMessage(Message msg) {
             // Always try rebuilding list first thing, if needed.
@@ -901,6 +1459,27 @@ public class ApplicationsState {
             switch (msg.what) {
                 case MSG_REBUILD_LIST: {
                 } break;
+                case MSG_LOAD_ICON: {
+                    AppEntry entry = (AppEntry)msg.obj;
+                    boolean loaded;
+                    synchronized (entry) {
+                        loaded = entry.ensureIconLocked(mContext);
+                    }
+                    if (loaded && !mMainHandler.hasMessages(
+                            MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
+                        mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_ICON_CHANGED);
+                    }
+                } break;
+                case MSG_PRIORITIZE_SIZE: {
+                    String packageName = (String)msg.obj;
+                    mPrioritySizes.remove(packageName);
+                    mPrioritySizes.add(packageName);
+                    if (mPrioritySizes.size() > MAX_PRIORITY_SIZES) {
+                        Iterator<String> it = mPrioritySizes.iterator();
+                        it.next();
+                        it.remove();
+                    }
+                } break;
                 case MSG_LOAD_ENTRIES: {
                     int numDone = 0;
                     synchronized (mEntriesMap) {
@@ -929,21 +1508,23 @@ public class ApplicationsState {
                 } break;
                 case MSG_LOAD_ICONS: {
                     int numDone = 0;
+                    final IconCache iconCache = IconCache.getInstance(mContext);
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS acquired lock");
-                        for (int i=0; i<mAppEntries.size() && numDone<2; i++) {
+                        // Only preload as many icons as fit in the cache;
+                        // the rest are loaded when they are displayed.
+                        for (int i=0; i<mAppEntries.size() && numDone<2
+                                && iconCache.hasRoom(); i++) {
                             AppEntry entry = mAppEntries.get(i);
-                            if (entry.icon == null || !entry.mounted) {
-                                synchronized (entry) {
-                                    if (entry.ensureIconLocked(mContext, mPm)) {
-                                        if (!mRunning) {
-                                            mRunning = true;
-                                            Message m = mMainHandler.obtainMessage(
-                                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                            mMainHandler.sendMessage(m);
-                                        }
-                                        numDone++;
+                            synchronized (entry) {
+                                if (entry.ensureIconLocked(mContext)) {
+                                    if (!mRunning) {
+                                        mRunning = true;
+                                        Message m = mMainHandler.obtainMessage(
+                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                        mMainHandler.sendMessage(m);
                                     }
+                                    numDone++;
                                 }
                             }
                         }
@@ -960,34 +1541,59 @@ public class ApplicationsState {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
                 } break;
-                case MSG_LOAD_SIZES: {
+                case MSG_LOAD_SIZES:
+                case MSG_SIZE_TIMEOUT: {
+                    boolean allComputed = false;
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
-                            return;
+                        long now = SystemClock.uptimeMillis();
+
+                        // Give up on requests that have taken too long, so
+                        // that they don't hold up the rest of the window.
+                        Iterator<Map.Entry<String, Long>> it = mSizesInFlight.entrySet().iterator();
+                        while (it.hasNext()) {
+                            if (it.next().getValue() < now - SIZE_TIMEOUT_MS) {
+                                it.remove();
+                                mSizeStats.noteTimedOut();
+                            }
                         }
 
-                        long now = SystemClock.uptimeMillis();
+                        // Packages on screen go first.
+                        Iterator<String> pit = mPrioritySizes.iterator();
+                        while (pit.hasNext() && mSizesInFlight.size() < mMaxSizesInFlight) {
+                            AppEntry entry = mEntriesMap.get(pit.next());
+                            pit.remove();
+                            if (entry != null && needsSizeLocked(entry, now)) {
+                                startSizeLocked(entry, now);
+                            }
+                        }
+
+                        boolean needSizes = false;
                         for (int i=0; i<mAppEntries.size(); i++) {
                             AppEntry entry = mAppEntries.get(i);
                             if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
+                                needSizes = true;
+                                if (mSizesInFlight.size() >= mMaxSizesInFlight) {
+                                    break;
+                                }
+                                if (needsSizeLocked(entry, now)) {
+                                    startSizeLocked(entry, now);
                                 }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
                             }
                         }
+
+                        if (needSizes || !mSizesInFlight.isEmpty()) {
+                            if (!hasMessages(MSG_SIZE_TIMEOUT)) {
+                                sendEmptyMessageDelayed(MSG_SIZE_TIMEOUT, SIZE_TIMEOUT_MS);
+                            }
+                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
+                            return;
+                        }
+                        removeMessages(MSG_SIZE_TIMEOUT);
+                        if (mSizeStats.mPassStart != 0 && mSizeStats.mPassEnd == 0) {
+                            mSizeStats.endPass(now);
+                            if (DEBUG) Log.i(TAG, "All sizes computed: " + mSizeStats);
+                        }
                         if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
                             mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
                             mRunning = false;
@@ -995,8 +1601,12 @@ public class ApplicationsState {
                                     MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
                             mMainHandler.sendMessage(m);
                         }
+                        allComputed = true;
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
                     }
+                    if (allComputed) {
+                        writeSnapshot();
+                    }
                 } break;
             }
         }
@@ -543,8 +543,7 @@ public class InstalledAppDetails extends Fragment
         appSnippet.setPadding(0, appSnippet.getPaddingTop(), 0, appSnippet.getPaddingBottom());
 
         ImageView icon = (ImageView) appSnippet.findViewById(R.id.app_icon);
-        mState.ensureIcon(mAppEntry);
-        icon.setImageDrawable(mAppEntry.icon);
+        icon.setImageDrawable(mState.getIcon(mAppEntry));
         // Set application name.
         TextView label = (TextView) appSnippet.findViewById(R.id.app_name);
         label.setText(mAppEntry.label);
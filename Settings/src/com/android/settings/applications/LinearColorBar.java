@@ -51,6 +51,9 @@ public class LinearColorBar extends LinearLayout {
     }
 
     public void setRatios(float red, float yellow, float green) {
+        if (mRedRatio == red && mYellowRatio == yellow && mGreenRatio == green) {
+            return;
+        }
         mRedRatio = red;
         mYellowRatio = yellow;
         mGreenRatio = green;
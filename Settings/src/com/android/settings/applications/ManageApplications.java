@@ -34,6 +34,7 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.IPackageManager;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.graphics.drawable.Drawable;
 import android.net.NetworkPolicyManager;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -517,7 +518,7 @@ public class ManageApplications extends Fragment implements
      * The order of applications in the list is mirrored in mAppLocalList
      */
     static class ApplicationsAdapter extends BaseAdapter implements Filterable,
-            ApplicationsState.Callbacks, AbsListView.RecyclerListener {
+            ApplicationsState.DeltaCallbacks, AbsListView.RecyclerListener {
         private final ApplicationsState mState;
         private final ApplicationsState.Session mSession;
         private final TabInfo mTab;
@@ -696,6 +697,17 @@ public class ManageApplications extends Fragment implements
             mTab.updateStorageUsage();
         }
 
+        @Override
+        public void onRebuildDelta(ArrayList<AppEntry> apps, ApplicationsState.ChangeSet changes) {
+            // Only the case where nothing moved is optimized; any insertion,
+            // removal or move rebuilds the (prefix-filtered) entries in full.
+            if (changes.isEmpty() && mBaseEntries != null) {
+                // Only sizes or labels of rows changed, not their positions.
+                return;
+            }
+            onRebuildComplete(apps);
+        }
+
         @Override
         public void onPackageListChanged() {
             rebuild(false);
@@ -703,8 +715,15 @@ public class ManageApplications extends Fragment implements
 
         @Override
         public void onPackageIconChanged() {
-            // We ensure icons are loaded when their item is displayed, so
-            // don't care about icons loaded in the background.
+            // Fill in the icons of rows that were bound before theirs was
+            // loaded.
+            for (int i=0; i<mActive.size(); i++) {
+                AppViewHolder holder = (AppViewHolder)mActive.get(i).getTag();
+                Drawable icon = mState.peekIcon(holder.entry);
+                if (icon != null) {
+                    holder.appIcon.setImageDrawable(icon);
+                }
+            }
         }
 
         @Override
@@ -752,6 +771,11 @@ public class ManageApplications extends Fragment implements
         public long getItemId(int position) {
             return mEntries.get(position).id;
         }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
         
         public View getView(int position, View convertView, ViewGroup parent) {
             // A ViewHolder keeps references to children views to avoid unnecessary calls
@@ -766,11 +790,18 @@ public class ManageApplications extends Fragment implements
                 if (entry.label != null) {
                     holder.appName.setText(entry.label);
                 }
-                mState.ensureIcon(entry);
-                if (entry.icon != null) {
-                    holder.appIcon.setImageDrawable(entry.icon);
+                Drawable icon = mState.peekIcon(entry);
+                if (icon != null) {
+                    holder.appIcon.setImageDrawable(icon);
+                } else {
+                    // Don't leave the icon of a recycled row showing until
+                    // this one's is loaded.
+                    holder.appIcon.setImageResource(android.R.drawable.sym_def_app_icon);
                 }
                 holder.updateSizeText(mTab.mInvalidSizeStr, mWhichSize);
+                if (entry.size == ApplicationsState.SIZE_UNKNOWN || entry.sizeStale) {
+                    mState.prioritizeSize(entry.info.packageName);
+                }
                 if ((entry.info.flags&ApplicationInfo.FLAG_INSTALLED) == 0) {
                     holder.disabled.setVisibility(View.VISIBLE);
                     holder.disabled.setText(R.string.not_installed);
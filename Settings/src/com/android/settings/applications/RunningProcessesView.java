@@ -49,7 +49,7 @@ import java.util.Iterator;
 
 public class RunningProcessesView extends FrameLayout
         implements AdapterView.OnItemClickListener, RecyclerListener,
-        RunningState.OnRefreshUiListener {
+        RunningState.OnRefreshDeltaListener {
     
     final int mMyUserId;
 
@@ -57,6 +57,11 @@ public class RunningProcessesView extends FrameLayout
     
     final HashMap<View, ActiveItem> mActiveItems = new HashMap<View, ActiveItem>();
 
+    // What the updates reported by the next onRefreshUi() changed; if none
+    // was reported, assume anything did.
+    final RunningState.RefreshDelta mPendingDelta = new RunningState.RefreshDelta();
+    boolean mHavePendingDelta;
+
     ActivityManager mAm;
     
     RunningState mState;
@@ -445,6 +450,14 @@ public class RunningProcessesView extends FrameLayout
         SECONDARY_SERVER_MEM = memInfo.secondaryServerThreshold;
     }
     
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        if (mState != null) {
+            mState.setVisible(this, visibility == VISIBLE);
+        }
+    }
+
     public void doPause() {
         mState.pause();
         mDataAvail = null;
@@ -453,6 +466,7 @@ public class RunningProcessesView extends FrameLayout
 
     public boolean doResume(Fragment owner, Runnable dataAvail) {
         mOwner = owner;
+        mHavePendingDelta = false;
         mState.resume(this);
         if (mState.hasData()) {
             // If the state already has its data, then let's populate our
@@ -477,8 +491,22 @@ public class RunningProcessesView extends FrameLayout
         }
     }
 
+    @Override
+    public void onRefreshDelta(RunningState.RefreshDelta delta) {
+        if (mHavePendingDelta) {
+            mPendingDelta.add(delta);
+        } else {
+            mPendingDelta.set(delta);
+            mHavePendingDelta = true;
+        }
+    }
+
     @Override
     public void onRefreshUi(int what) {
+        // If only sizes changed, the rows on screen are updated in place by
+        // updateTimes() rather than rebinding the whole list.
+        final boolean itemsChanged = !mHavePendingDelta || mPendingDelta.changesItems();
+        mHavePendingDelta = false;
         switch (what) {
             case REFRESH_TIME:
                 updateTimes();
@@ -488,7 +516,7 @@ public class RunningProcessesView extends FrameLayout
                 updateTimes();
                 break;
             case REFRESH_STRUCTURE:
-                refreshUi(true);
+                refreshUi(itemsChanged);
                 updateTimes();
                 break;
         }
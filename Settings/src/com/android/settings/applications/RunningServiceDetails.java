@@ -44,7 +44,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 
 public class RunningServiceDetails extends Fragment
-        implements RunningState.OnRefreshUiListener {
+        implements RunningState.OnRefreshDeltaListener {
     static final String TAG = "RunningServicesDetails";
 
     static final String KEY_UID = "uid";
@@ -78,6 +78,11 @@ public class RunningServiceDetails extends Fragment
     TextView mServicesHeader;
     TextView mProcessesHeader;
     final ArrayList<ActiveDetail> mActiveDetails = new ArrayList<ActiveDetail>();
+
+    // What the updates reported by the next onRefreshUi() changed; if none
+    // was reported, assume anything did.
+    final RunningState.RefreshDelta mPendingDelta = new RunningState.RefreshDelta();
+    boolean mHavePendingDelta;
     
     class ActiveDetail implements View.OnClickListener {
         View mRootView;
@@ -182,10 +187,12 @@ public class RunningServiceDetails extends Fragment
             } else if (mActiveItem.mItem.mBackground) {
                 // Background process.  Just kill it.
                 mAm.killBackgroundProcesses(mActiveItem.mItem.mPackageInfo.packageName);
+                mState.updateNow();
                 finish();
             } else {
                 // Heavy-weight process.  We'll do a force-stop on it.
                 mAm.forceStopPackage(mActiveItem.mItem.mPackageInfo.packageName);
+                mState.updateNow();
                 finish();
             }
         }
@@ -605,6 +612,7 @@ public class RunningServiceDetails extends Fragment
     void ensureData() {
         if (!mHaveData) {
             mHaveData = true;
+            mHavePendingDelta = false;
             mState.resume(this);
 
             // We want to go away if the service being shown no longer exists,
@@ -627,8 +635,22 @@ public class RunningServiceDetails extends Fragment
         }
     }
 
+    @Override
+    public void onRefreshDelta(RunningState.RefreshDelta delta) {
+        if (mHavePendingDelta) {
+            mPendingDelta.add(delta);
+        } else {
+            mPendingDelta.set(delta);
+            mHavePendingDelta = true;
+        }
+    }
+
     @Override
     public void onRefreshUi(int what) {
+        // If only sizes changed, updateTimes() shows them without binding
+        // the item again.
+        final boolean itemsChanged = !mHavePendingDelta || mPendingDelta.changesItems();
+        mHavePendingDelta = false;
         if (getActivity() == null) return;
         switch (what) {
             case REFRESH_TIME:
@@ -639,7 +661,7 @@ public class RunningServiceDetails extends Fragment
                 updateTimes();
                 break;
             case REFRESH_STRUCTURE:
-                refreshUi(true);
+                refreshUi(itemsChanged);
                 updateTimes();
                 break;
         }
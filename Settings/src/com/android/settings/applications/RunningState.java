@@ -37,6 +37,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.text.format.Formatter;
@@ -56,6 +57,7 @@ import java.util.List;
  */
 public class RunningState {
     static final String TAG = "RunningState";
+    static final boolean DEBUG = false;
     static final boolean DEBUG_COMPARE = false;
 
     static Object sGlobalLock = new Object();
@@ -69,6 +71,17 @@ public class RunningState {
     static final long TIME_UPDATE_DELAY = 1000;
     static final long CONTENTS_UPDATE_DELAY = 2000;
 
+    // Bounds of the adaptive contents update interval: updates come faster
+    // for a few rounds after the user stopped something, and back off while
+    // consecutive updates find nothing changed.
+    static final long MIN_CONTENTS_UPDATE_DELAY = 500;
+    static final long MAX_CONTENTS_UPDATE_DELAY = 16*1000;
+    static final int BOOST_UPDATES = 3;
+
+    // How long a process's memory sample is reused while its state is
+    // unchanged.
+    static final long PSS_STALE_TIME = 10*1000;
+
     static final int MAX_SERVICES = 100;
 
     final Context mApplicationContext;
@@ -123,17 +136,24 @@ public class RunningState {
     final SparseArray<UserState> mUsers = new SparseArray<UserState>();
 
     static class AppProcessInfo {
-        final ActivityManager.RunningAppProcessInfo info;
+        ActivityManager.RunningAppProcessInfo info;
         boolean hasServices;
         boolean hasForegroundServices;
 
-        AppProcessInfo(ActivityManager.RunningAppProcessInfo _info) {
+        void set(ActivityManager.RunningAppProcessInfo _info) {
             info = _info;
+            hasServices = false;
+            hasForegroundServices = false;
         }
     }
 
-    // Temporary structure used when updating above information.
+    // Temporary structures used when updating above information, kept
+    // around so that each update doesn't need to allocate them again.
     final SparseArray<AppProcessInfo> mTmpAppProcesses = new SparseArray<AppProcessInfo>();
+    final ArrayList<AppProcessInfo> mAppProcessInfoPool = new ArrayList<AppProcessInfo>();
+    final ArrayList<ProcessItem> mTmpSortedProcesses = new ArrayList<ProcessItem>();
+    final ArrayList<ProcessItem> mTmpPssProcesses = new ArrayList<ProcessItem>();
+    int[] mTmpPids = new int[0];
 
     int mSequence = 0;
 
@@ -201,6 +221,16 @@ public class RunningState {
     final Object mLock = new Object();
     
     boolean mResumed;
+    boolean mVisible;
+
+    // Adaptive update scheduling; all guarded by mLock.
+    long mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+    int mIdleUpdates;
+    int mBoostUpdates;
+    int mSkippedRefreshes;
+    int mSkippedUpdates;
+    boolean mForceRefresh;
+    long mHiddenTime;
     boolean mHaveData;
     boolean mWatchingBackgroundItems;
 
@@ -216,6 +246,11 @@ public class RunningState {
     int mNumServiceProcesses;
     long mServiceProcessMemory;
 
+    // What the last update changed; filled in mWorkDelta by the background
+    // thread and published to mLastDelta.
+    final RefreshDelta mLastDelta = new RefreshDelta();
+    final RefreshDelta mWorkDelta = new RefreshDelta();
+
     // ----- BACKGROUND MONITORING THREAD -----
 
     final HandlerThread mBackgroundThread;
@@ -232,16 +267,31 @@ public class RunningState {
                     break;
                 case MSG_UPDATE_CONTENTS:
                     synchronized (mLock) {
-                        if (!mResumed) {
+                        if (!mResumed || !mVisible) {
                             return;
                         }
                     }
-                    Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
-                    cmd.arg1 = update(mApplicationContext, mAm) ? 1 : 0;
-                    mHandler.sendMessage(cmd);
+                    final boolean changed = update(mApplicationContext, mAm);
+                    final long delay;
+                    final boolean refresh;
+                    synchronized (mLock) {
+                        final boolean identical = !changed && !mLastDelta.mStructureChanged
+                                && !mLastDelta.mBackgroundChanged && !mLastDelta.mMemoryChanged;
+                        refresh = !identical || mForceRefresh;
+                        mForceRefresh = false;
+                        if (!refresh) {
+                            mSkippedRefreshes++;
+                        }
+                        delay = scheduleNextUpdateLocked(identical);
+                    }
+                    if (refresh) {
+                        Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
+                        cmd.arg1 = changed ? 1 : 0;
+                        mHandler.sendMessage(cmd);
+                    }
                     removeMessages(MSG_UPDATE_CONTENTS);
                     msg = obtainMessage(MSG_UPDATE_CONTENTS);
-                    sendMessageDelayed(msg, CONTENTS_UPDATE_DELAY);
+                    sendMessageDelayed(msg, delay);
                     break;
             }
         }
@@ -251,6 +301,7 @@ public class RunningState {
 
     final Handler mHandler = new Handler() {
         int mNextUpdate = OnRefreshUiListener.REFRESH_TIME;
+        final RefreshDelta mUiDelta = new RefreshDelta();
 
         @Override
         public void handleMessage(Message msg) {
@@ -259,10 +310,16 @@ public class RunningState {
                     mNextUpdate = msg.arg1 != 0
                             ? OnRefreshUiListener.REFRESH_STRUCTURE
                             : OnRefreshUiListener.REFRESH_DATA;
+                    if (mRefreshUiListener instanceof OnRefreshDeltaListener) {
+                        synchronized (mLock) {
+                            mUiDelta.set(mLastDelta);
+                        }
+                        ((OnRefreshDeltaListener)mRefreshUiListener).onRefreshDelta(mUiDelta);
+                    }
                     break;
                 case MSG_UPDATE_TIME:
                     synchronized (mLock) {
-                        if (!mResumed) {
+                        if (!mResumed || !mVisible) {
                             return;
                         }
                     }
@@ -291,6 +348,92 @@ public class RunningState {
         public void onRefreshUi(int what);
     }
 
+    /**
+     * Optional extension of {@link OnRefreshUiListener} for listeners that
+     * want to know what an update actually changed.  Called for every update
+     * that leads to a data or structure refresh, before the
+     * {@link OnRefreshUiListener#onRefreshUi} call reporting it; one such call
+     * may cover several updates.  The delta is only valid during the call.
+     */
+    static interface OnRefreshDeltaListener extends OnRefreshUiListener {
+        public void onRefreshDelta(RefreshDelta delta);
+    }
+
+    /**
+     * What changed between two consecutive updates.
+     */
+    static class RefreshDelta {
+        int mSequence;
+        int mAddedProcesses;
+        int mRemovedProcesses;
+        int mAddedServices;
+        int mRemovedServices;
+        int mSizesQueried;
+        int mSizesReused;
+        boolean mStructureChanged;
+        boolean mBackgroundChanged;
+        boolean mMemoryChanged;
+
+        void clear(int seq) {
+            mSequence = seq;
+            mAddedProcesses = 0;
+            mRemovedProcesses = 0;
+            mAddedServices = 0;
+            mRemovedServices = 0;
+            mSizesQueried = 0;
+            mSizesReused = 0;
+            mStructureChanged = false;
+            mBackgroundChanged = false;
+            mMemoryChanged = false;
+        }
+
+        void set(RefreshDelta other) {
+            mSequence = other.mSequence;
+            mAddedProcesses = other.mAddedProcesses;
+            mRemovedProcesses = other.mRemovedProcesses;
+            mAddedServices = other.mAddedServices;
+            mRemovedServices = other.mRemovedServices;
+            mSizesQueried = other.mSizesQueried;
+            mSizesReused = other.mSizesReused;
+            mStructureChanged = other.mStructureChanged;
+            mBackgroundChanged = other.mBackgroundChanged;
+            mMemoryChanged = other.mMemoryChanged;
+        }
+
+        /** Folds the changes of a later update into this one. */
+        void add(RefreshDelta other) {
+            mSequence = other.mSequence;
+            mAddedProcesses += other.mAddedProcesses;
+            mRemovedProcesses += other.mRemovedProcesses;
+            mAddedServices += other.mAddedServices;
+            mRemovedServices += other.mRemovedServices;
+            mSizesQueried += other.mSizesQueried;
+            mSizesReused += other.mSizesReused;
+            mStructureChanged |= other.mStructureChanged;
+            mBackgroundChanged |= other.mBackgroundChanged;
+            mMemoryChanged |= other.mMemoryChanged;
+        }
+
+        /**
+         * Whether the items listed may have changed, rather than only their
+         * sizes and the totals.
+         */
+        boolean changesItems() {
+            return mStructureChanged || mBackgroundChanged;
+        }
+
+        @Override
+        public String toString() {
+            return "RefreshDelta{#" + mSequence + " procs +" + mAddedProcesses
+                    + "/-" + mRemovedProcesses + " services +" + mAddedServices
+                    + "/-" + mRemovedServices + " pss " + mSizesQueried
+                    + " queried/" + mSizesReused + " reused"
+                    + (mStructureChanged ? " structure" : "")
+                    + (mBackgroundChanged ? " background" : "")
+                    + (mMemoryChanged ? " memory" : "") + "}";
+        }
+    }
+
     static class UserState {
         UserInfo mInfo;
         String mLabel;
@@ -364,6 +507,11 @@ public class RunningState {
         boolean mIsSystem;
         boolean mIsStarted;
         long mActiveSince;
+
+        // State of the process when its memory was last sampled.
+        long mLastPssTime;
+        int mLastPssPid;
+        int mLastPssImportance;
         
         public ProcessItem(Context context, int uid, String processName) {
             super(true, UserHandle.getUserId(uid));
@@ -502,6 +650,21 @@ public class RunningState {
             return changed;
         }
         
+        boolean needsPss(long now) {
+            if (mPid != mLastPssPid || now - mLastPssTime >= PSS_STALE_TIME) {
+                return true;
+            }
+            return mRunningProcessInfo != null
+                    && mRunningProcessInfo.importance != mLastPssImportance;
+        }
+
+        void notePss(long now) {
+            mLastPssTime = now;
+            mLastPssPid = mPid;
+            mLastPssImportance = mRunningProcessInfo != null
+                    ? mRunningProcessInfo.importance : 0;
+        }
+
         boolean updateSize(Context context, long pss, int curSeq) {
             mSize = pss * 1024;
             if (mCurSeq == curSeq) {
@@ -738,6 +901,10 @@ public class RunningState {
     void resume(OnRefreshUiListener listener) {
         synchronized (mLock) {
             mResumed = true;
+            mVisible = true;
+            mForceRefresh = true;
+            mIdleUpdates = 0;
+            mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
             mRefreshUiListener = listener;
             if (mInterestingConfigChanges.applyNewConfig(mApplicationContext.getResources())) {
                 mHaveData = false;
@@ -754,11 +921,97 @@ public class RunningState {
 
     void updateNow() {
         synchronized (mLock) {
+            // Something was just stopped or killed; watch closely for a
+            // little while so the result shows up promptly.
+            mBoostUpdates = BOOST_UPDATES;
+            mIdleUpdates = 0;
             mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
             mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
         }
     }
 
+    /**
+     * Stops updating while the given listener's view is not visible on
+     * screen, and catches up immediately once it is again.  Ignored if the
+     * listener is not the one currently resumed.
+     */
+    void setVisible(OnRefreshUiListener listener, boolean visible) {
+        synchronized (mLock) {
+            if (!mResumed || mRefreshUiListener != listener || mVisible == visible) {
+                return;
+            }
+            mVisible = visible;
+            if (DEBUG) Log.i(TAG, "Visible " + visible + ": " + getSchedulerStatsLocked());
+            if (visible) {
+                // Account for the updates that would have run while hidden.
+                mSkippedUpdates += (SystemClock.uptimeMillis() - mHiddenTime)
+                        / mContentsUpdateDelay;
+                mIdleUpdates = 0;
+                mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+                mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
+                mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
+                mHandler.removeMessages(MSG_UPDATE_TIME);
+                mHandler.sendEmptyMessage(MSG_UPDATE_TIME);
+            } else {
+                mHiddenTime = SystemClock.uptimeMillis();
+                mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
+                mHandler.removeMessages(MSG_UPDATE_TIME);
+            }
+        }
+    }
+
+    private long scheduleNextUpdateLocked(boolean identical) {
+        if (identical) {
+            mIdleUpdates++;
+        } else {
+            mIdleUpdates = 0;
+        }
+        if (mBoostUpdates > 0) {
+            mBoostUpdates--;
+            mContentsUpdateDelay = MIN_CONTENTS_UPDATE_DELAY;
+        } else if (mIdleUpdates > 1) {
+            // Double the interval for each further update that found
+            // nothing new.
+            mContentsUpdateDelay = Math.min(MAX_CONTENTS_UPDATE_DELAY,
+                    mContentsUpdateDelay < CONTENTS_UPDATE_DELAY
+                            ? CONTENTS_UPDATE_DELAY : mContentsUpdateDelay * 2);
+        } else {
+            mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+        }
+        if (DEBUG) Log.i(TAG, "Next update: " + getSchedulerStatsLocked());
+        return mContentsUpdateDelay;
+    }
+
+    long getContentsUpdateDelay() {
+        synchronized (mLock) {
+            return mContentsUpdateDelay;
+        }
+    }
+
+    int getSkippedRefreshCount() {
+        synchronized (mLock) {
+            return mSkippedRefreshes;
+        }
+    }
+
+    int getSkippedUpdateCount() {
+        synchronized (mLock) {
+            return mSkippedUpdates;
+        }
+    }
+
+    String getSchedulerStats() {
+        synchronized (mLock) {
+            return getSchedulerStatsLocked();
+        }
+    }
+
+    private String getSchedulerStatsLocked() {
+        return "delay=" + mContentsUpdateDelay + "ms idle=" + mIdleUpdates
+                + " boost=" + mBoostUpdates + " skippedRefreshes=" + mSkippedRefreshes
+                + " skippedUpdates=" + mSkippedUpdates + " visible=" + mVisible;
+    }
+
     boolean hasData() {
         synchronized (mLock) {
             return mHaveData;
@@ -844,6 +1097,7 @@ public class RunningState {
         final PackageManager pm = context.getPackageManager();
         
         mSequence++;
+        mWorkDelta.clear(mSequence);
         
         boolean changed = false;
 
@@ -882,7 +1136,12 @@ public class RunningState {
         mTmpAppProcesses.clear();
         for (int i=0; i<NP; i++) {
             ActivityManager.RunningAppProcessInfo pi = processes.get(i);
-            mTmpAppProcesses.put(pi.pid, new AppProcessInfo(pi));
+            if (i >= mAppProcessInfoPool.size()) {
+                mAppProcessInfoPool.add(new AppProcessInfo());
+            }
+            AppProcessInfo ainfo = mAppProcessInfoPool.get(i);
+            ainfo.set(pi);
+            mTmpAppProcesses.put(pi.pid, ainfo);
         }
 
         // Initial iteration through running services to collect per-process
@@ -945,6 +1204,7 @@ public class RunningState {
             ProcessItem proc = procs.get(si.process);
             if (proc == null) {
                 changed = true;
+                mWorkDelta.mAddedProcesses++;
                 proc = new ProcessItem(context, si.uid, si.process);
                 procs.put(si.process, proc);
             }
@@ -966,7 +1226,9 @@ public class RunningState {
                 proc.mDependentProcesses.clear();
                 proc.mCurSeq = mSequence;
             }
+            final int numServices = proc.mServices.size();
             changed |= proc.updateService(context, si);
+            mWorkDelta.mAddedServices += proc.mServices.size() - numServices;
         }
         
         // Now update the map of other processes that are running (but
@@ -981,6 +1243,7 @@ public class RunningState {
                 proc = mRunningProcesses.get(pi.pid);
                 if (proc == null) {
                     changed = true;
+                    mWorkDelta.mAddedProcesses++;
                     proc = new ProcessItem(context, pi.uid, pi.processName);
                     proc.mPid = pi.pid;
                     mRunningProcesses.put(pi.pid, proc);
@@ -1028,6 +1291,7 @@ public class RunningState {
                 i++;
             } else {
                 changed = true;
+                mWorkDelta.mRemovedProcesses++;
                 mRunningProcesses.remove(mRunningProcesses.keyAt(i));
                 NRP--;
             }
@@ -1072,6 +1336,7 @@ public class RunningState {
                     }
                 } else {
                     changed = true;
+                    mWorkDelta.mRemovedProcesses++;
                     pit.remove();
                     if (procs.size() == 0) {
                         if (uidToDelete == null) {
@@ -1089,6 +1354,7 @@ public class RunningState {
                     ServiceItem si = sit.next();
                     if (si.mCurSeq != mSequence) {
                         changed = true;
+                        mWorkDelta.mRemovedServices++;
                         sit.remove();
                     }
                 }
@@ -1103,8 +1369,11 @@ public class RunningState {
         }
 
         if (changed) {
+            mWorkDelta.mStructureChanged = true;
+
             // First determine an order for the services.
-            ArrayList<ProcessItem> sortedProcesses = new ArrayList<ProcessItem>();
+            final ArrayList<ProcessItem> sortedProcesses = mTmpSortedProcesses;
+            sortedProcesses.clear();
             for (int i=0; i<mServiceProcessesByName.size(); i++) {
                 for (ProcessItem pi : mServiceProcessesByName.valueAt(i).values()) {
                     pi.mIsSystem = false;
@@ -1219,6 +1488,8 @@ public class RunningState {
                 }
             }
 
+            sortedProcesses.clear();
+
             synchronized (mLock) {
                 mItems = newItems;
                 mMergedItems = newMergedItems;
@@ -1262,17 +1533,45 @@ public class RunningState {
         ArrayList<MergedItem> newUserBackgroundItems = null;
         boolean diffUsers = false;
         try {
+            // Only sample memory of processes that are new, changed state,
+            // or whose last sample is too old; the rest keep their size.
+            final long now = SystemClock.uptimeMillis();
             final int numProc = mAllProcessItems.size();
-            int[] pids = new int[numProc];
+            mTmpPssProcesses.clear();
             for (int i=0; i<numProc; i++) {
-                pids[i] = mAllProcessItems.get(i).mPid;
+                ProcessItem proc = mAllProcessItems.get(i);
+                if (proc.needsPss(now)) {
+                    mTmpPssProcesses.add(proc);
+                } else {
+                    mWorkDelta.mSizesReused++;
+                    if (proc.mCurSeq == mSequence && proc.mSizeStr == null) {
+                        proc.updateSize(context, proc.mSize / 1024, mSequence);
+                    }
+                }
+            }
+            final int numQuery = mTmpPssProcesses.size();
+            if (numQuery > 0) {
+                if (mTmpPids.length != numQuery) {
+                    mTmpPids = new int[numQuery];
+                }
+                final int[] pids = mTmpPids;
+                for (int i=0; i<numQuery; i++) {
+                    pids[i] = mTmpPssProcesses.get(i).mPid;
+                }
+                long[] pss = ActivityManagerNative.getDefault()
+                        .getProcessPss(pids);
+                for (int i=0; i<numQuery; i++) {
+                    ProcessItem proc = mTmpPssProcesses.get(i);
+                    changed |= proc.updateSize(context, pss[i], mSequence);
+                    proc.notePss(now);
+                }
+                mWorkDelta.mSizesQueried = numQuery;
+                mTmpPssProcesses.clear();
             }
-            long[] pss = ActivityManagerNative.getDefault()
-                    .getProcessPss(pids);
+
             int bgIndex = 0;
-            for (int i=0; i<pids.length; i++) {
+            for (int i=0; i<numProc; i++) {
                 ProcessItem proc = mAllProcessItems.get(i);
-                changed |= proc.updateSize(context, pss[i], mSequence);
                 if (proc.mCurSeq == mSequence) {
                     serviceProcessMemory += proc.mSize;
                 } else if (proc.mRunningProcessInfo.importance >=
@@ -1280,8 +1579,7 @@ public class RunningState {
                     backgroundProcessMemory += proc.mSize;
                     MergedItem mergedItem;
                     if (newBackgroundItems != null) {
-                        mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
-                        proc.mMergedItem.mProcess = proc;
+                        mergedItem = obtainBackgroundItem(proc);
                         diffUsers |= mergedItem.mUserId != mMyUserId;
                         newBackgroundItems.add(mergedItem);
                     } else {
@@ -1293,8 +1591,7 @@ public class RunningState {
                                 diffUsers |= mergedItem.mUserId != mMyUserId;
                                 newBackgroundItems.add(mergedItem);
                             }
-                            mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
-                            proc.mMergedItem.mProcess = proc;
+                            mergedItem = obtainBackgroundItem(proc);
                             diffUsers |= mergedItem.mUserId != mMyUserId;
                             newBackgroundItems.add(mergedItem);
                         } else {
@@ -1361,6 +1658,10 @@ public class RunningState {
             mMergedItems.get(i).updateSize(context);
         }
         
+        mWorkDelta.mMemoryChanged = mBackgroundProcessMemory != backgroundProcessMemory
+                || mForegroundProcessMemory != foregroundProcessMemory
+                || mServiceProcessMemory != serviceProcessMemory;
+
         synchronized (mLock) {
             mNumBackgroundProcesses = numBackgroundProcesses;
             mNumForegroundProcesses = numForegroundProcesses;
@@ -1371,10 +1672,12 @@ public class RunningState {
             if (newBackgroundItems != null) {
                 mBackgroundItems = newBackgroundItems;
                 mUserBackgroundItems = newUserBackgroundItems;
+                mWorkDelta.mBackgroundChanged = true;
                 if (mWatchingBackgroundItems) {
                     changed = true;
                 }
             }
+            mLastDelta.set(mWorkDelta);
             if (!mHaveData) {
                 mHaveData = true;
                 mLock.notifyAll();
@@ -1384,6 +1687,18 @@ public class RunningState {
         return changed;
     }
     
+    // Background processes keep the merged item they had the last time
+    // they were shown, rather than getting a new one each update.
+    private MergedItem obtainBackgroundItem(ProcessItem proc) {
+        MergedItem mergedItem = proc.mMergedItem;
+        if (mergedItem == null || mergedItem.mProcess != proc || mergedItem.mUser != null
+                || !mergedItem.mServices.isEmpty() || !mergedItem.mOtherProcesses.isEmpty()) {
+            mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
+            mergedItem.mProcess = proc;
+        }
+        return mergedItem;
+    }
+
     ArrayList<BaseItem> getCurrentItems() {
         synchronized (mLock) {
             return mItems;
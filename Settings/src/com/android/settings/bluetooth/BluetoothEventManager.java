@@ -27,10 +27,12 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.util.Log;
+import android.view.Choreographer;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -38,10 +40,21 @@ import java.util.Set;
  * BluetoothEventManager receives broadcasts and callbacks from the Bluetooth
  * API and dispatches the event on the UI thread to the right class in the
  * Settings.
+ * <p>
+ * Per-device updates (found, name, class and UUID changes) are coalesced
+ * until the next frame and then applied as one batch per device, so that a
+ * burst of them during discovery rebinds each device's preference once.
+ * Any other broadcast applies the pending updates first, keeping the order.
  */
 final class BluetoothEventManager {
     private static final String TAG = "BluetoothEventManager";
 
+    // Fields changed by a pending update
+    private static final int CHANGED_FOUND = 1 << 0;
+    private static final int CHANGED_NAME = 1 << 1;
+    private static final int CHANGED_CLASS = 1 << 2;
+    private static final int CHANGED_UUID = 1 << 3;
+
     private final LocalBluetoothAdapter mLocalAdapter;
     private final CachedBluetoothDeviceManager mDeviceManager;
     private LocalBluetoothProfileManager mProfileManager;
@@ -52,6 +65,42 @@ final class BluetoothEventManager {
     private final Collection<BluetoothCallback> mCallbacks =
             new ArrayList<BluetoothCallback>();
 
+    /** Per-device updates waiting for the next frame, by device address. */
+    private final LinkedHashMap<String, PendingUpdate> mPendingUpdates =
+            new LinkedHashMap<String, PendingUpdate>();
+    private boolean mFlushScheduled;
+
+    // Coalescing metrics: broadcasts queued, device updates applied, flushes
+    private int mEventsReceived;
+    private int mEventsDispatched;
+    private int mFlushCount;
+
+    /**
+     * Merged updates of one device.  Found values are the latest ones; a
+     * found broadcast supersedes name and class changes received before it,
+     * as it would have when applied in order.
+     */
+    private static class PendingUpdate {
+        final BluetoothDevice device;
+        int changed;
+        short rssi;
+        BluetoothClass btClass;
+        String name;
+
+        PendingUpdate(BluetoothDevice device) {
+            this.device = device;
+        }
+    }
+
+    private final Choreographer.FrameCallback mFlushCallback =
+            new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFlushScheduled = false;
+            flushPendingUpdates();
+        }
+    };
+
     interface Handler {
         void onReceive(Context context, Intent intent, BluetoothDevice device);
     }
@@ -147,11 +196,108 @@ final class BluetoothEventManager {
 
             Handler handler = mHandlerMap.get(action);
             if (handler != null) {
+                if (handler instanceof CoalescedHandler) {
+                    if (device == null) {
+                        Log.w(TAG, action + " with no EXTRA_DEVICE");
+                        return;
+                    }
+                } else {
+                    // Anything else sees the device updates received before it.
+                    flushPendingUpdates();
+                }
                 handler.onReceive(context, intent, device);
             }
         }
     };
 
+    /**
+     * Handlers that only queue a per-device update, see {@link #queueUpdate}.
+     */
+    private interface CoalescedHandler extends Handler {
+    }
+
+    private PendingUpdate queueUpdate(BluetoothDevice device, int changed) {
+        final String address = device.getAddress();
+        PendingUpdate update = mPendingUpdates.get(address);
+        if (update == null) {
+            update = new PendingUpdate(device);
+            mPendingUpdates.put(address, update);
+        }
+        update.changed |= changed;
+        mEventsReceived++;
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            Choreographer.getInstance().postFrameCallback(mFlushCallback);
+        }
+        return update;
+    }
+
+    /**
+     * Apply the queued device updates, reporting attribute changes once per
+     * device.
+     */
+    void flushPendingUpdates() {
+        if (mPendingUpdates.isEmpty()) {
+            return;
+        }
+        final ArrayList<PendingUpdate> updates =
+                new ArrayList<PendingUpdate>(mPendingUpdates.values());
+        mPendingUpdates.clear();
+        mFlushCount++;
+
+        for (PendingUpdate update : updates) {
+            final BluetoothDevice device = update.device;
+            CachedBluetoothDevice cachedDevice = mDeviceManager.findDevice(device);
+            if ((update.changed & CHANGED_FOUND) != 0 && cachedDevice == null) {
+                cachedDevice = mDeviceManager.addDevice(mLocalAdapter, mProfileManager, device);
+                Log.d(TAG, "DeviceFoundHandler created new CachedBluetoothDevice: "
+                        + cachedDevice);
+                // callback to UI to create Preference for new device
+                dispatchDeviceAdded(cachedDevice);
+            }
+            if (cachedDevice == null) {
+                continue;
+            }
+
+            cachedDevice.beginBatch();
+            try {
+                if ((update.changed & CHANGED_FOUND) != 0) {
+                    cachedDevice.setRssi(update.rssi);
+                    cachedDevice.setBtClass(update.btClass);
+                    cachedDevice.setName(update.name);
+                    cachedDevice.setVisible(true);
+                }
+                if ((update.changed & CHANGED_NAME) != 0) {
+                    mDeviceManager.onDeviceNameUpdated(device);
+                }
+                if ((update.changed & CHANGED_CLASS) != 0) {
+                    mDeviceManager.onBtClassChanged(device);
+                }
+                if ((update.changed & CHANGED_UUID) != 0) {
+                    mDeviceManager.onUuidChanged(device);
+                }
+            } finally {
+                cachedDevice.endBatch();
+            }
+            mEventsDispatched++;
+        }
+        if (Utils.V) {
+            Log.v(TAG, "Flushed " + updates.size() + " device updates; received="
+                    + mEventsReceived + " dispatched=" + mEventsDispatched
+                    + " flushes=" + mFlushCount);
+        }
+    }
+
+    /** Number of per-device broadcasts queued for coalescing. */
+    int getEventsReceivedCount() {
+        return mEventsReceived;
+    }
+
+    /** Number of per-device batches applied. */
+    int getEventsDispatchedCount() {
+        return mEventsDispatched;
+    }
+
     private class AdapterStateChangedHandler implements Handler {
         public void onReceive(Context context, Intent intent,
                 BluetoothDevice device) {
@@ -188,7 +334,7 @@ final class BluetoothEventManager {
         }
     }
 
-    private class DeviceFoundHandler implements Handler {
+    private class DeviceFoundHandler implements CoalescedHandler {
         public void onReceive(Context context, Intent intent,
                 BluetoothDevice device) {
             short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
@@ -196,18 +342,15 @@ final class BluetoothEventManager {
             String name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
             // TODO Pick up UUID. They should be available for 2.1 devices.
             // Skip for now, there's a bluez problem and we are not getting uuids even for 2.1.
-            CachedBluetoothDevice cachedDevice = mDeviceManager.findDevice(device);
-            if (cachedDevice == null) {
-                cachedDevice = mDeviceManager.addDevice(mLocalAdapter, mProfileManager, device);
-                Log.d(TAG, "DeviceFoundHandler created new CachedBluetoothDevice: "
-                        + cachedDevice);
-                // callback to UI to create Preference for new device
-                dispatchDeviceAdded(cachedDevice);
+            final PendingUpdate update = queueUpdate(device, CHANGED_FOUND);
+            update.rssi = rssi;
+            update.name = name;
+            // setName() below would override an earlier name refresh
+            update.changed &= ~CHANGED_NAME;
+            if (btClass != null) {
+                update.btClass = btClass;
+                update.changed &= ~CHANGED_CLASS;
             }
-            cachedDevice.setRssi(rssi);
-            cachedDevice.setBtClass(btClass);
-            cachedDevice.setName(name);
-            cachedDevice.setVisible(true);
         }
     }
 
@@ -237,10 +380,10 @@ final class BluetoothEventManager {
         }
     }
 
-    private class NameChangedHandler implements Handler {
+    private class NameChangedHandler implements CoalescedHandler {
         public void onReceive(Context context, Intent intent,
                 BluetoothDevice device) {
-            mDeviceManager.onDeviceNameUpdated(device);
+            queueUpdate(device, CHANGED_NAME);
         }
     }
 
@@ -328,17 +471,17 @@ final class BluetoothEventManager {
         }
     }
 
-    private class ClassChangedHandler implements Handler {
+    private class ClassChangedHandler implements CoalescedHandler {
         public void onReceive(Context context, Intent intent,
                 BluetoothDevice device) {
-            mDeviceManager.onBtClassChanged(device);
+            queueUpdate(device, CHANGED_CLASS);
         }
     }
 
-    private class UuidChangedHandler implements Handler {
+    private class UuidChangedHandler implements CoalescedHandler {
         public void onReceive(Context context, Intent intent,
                 BluetoothDevice device) {
-            mDeviceManager.onUuidChanged(device);
+            queueUpdate(device, CHANGED_UUID);
         }
     }
 
@@ -68,6 +68,10 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
 
     private final Collection<Callback> mCallbacks = new ArrayList<Callback>();
 
+    // Nesting of beginBatch() calls, and whether anything changed meanwhile
+    private int mBatchDepth;
+    private boolean mBatchChanged;
+
     // Following constants indicate the user's choices of Phone book access settings
     // User hasn't made any choice or settings app has wiped out the memory
     final static int PHONEBOOK_ACCESS_UNKNOWN = 0;
@@ -570,7 +574,26 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
         }
     }
 
+    /**
+     * Hold back attribute change callbacks until the matching
+     * {@link #endBatch}, so that several updates are reported once.
+     */
+    void beginBatch() {
+        mBatchDepth++;
+    }
+
+    void endBatch() {
+        if (--mBatchDepth == 0 && mBatchChanged) {
+            mBatchChanged = false;
+            dispatchAttributesChanged();
+        }
+    }
+
     private void dispatchAttributesChanged() {
+        if (mBatchDepth > 0) {
+            mBatchChanged = true;
+            return;
+        }
         synchronized (mCallbacks) {
             for (Callback callback : mCallbacks) {
                 callback.onDeviceAttributesChanged();
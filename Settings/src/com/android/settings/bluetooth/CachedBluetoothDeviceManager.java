@@ -23,25 +23,74 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * CachedBluetoothDeviceManager manages the set of remote Bluetooth devices.
+ * Devices are indexed by address, so looking one up doesn't scan the list,
+ * and the list handed out by {@link #getCachedDevicesCopy} is an immutable
+ * snapshot that is only rebuilt after devices are added or removed.
  */
 final class CachedBluetoothDeviceManager {
     private static final String TAG = "CachedBluetoothDeviceManager";
     private static final boolean DEBUG = Utils.D;
 
+    // Events counted by the manager, see getEventCount().
+    static final int EVENT_LOOKUP = 0;
+    static final int EVENT_LOOKUP_MISS = 1;
+    static final int EVENT_DEVICE_ADDED = 2;
+    static final int EVENT_DEVICE_REMOVED = 3;
+    static final int EVENT_NAME_CHANGED = 4;
+    static final int EVENT_CLASS_CHANGED = 5;
+    static final int EVENT_UUID_CHANGED = 6;
+    static final int EVENT_SCAN_STARTED = 7;
+    static final int EVENT_SNAPSHOT_BUILT = 8;
+    private static final int EVENT_COUNT = 9;
+
+    private static final String[] EVENT_NAMES = {
+        "lookup", "lookupMiss", "added", "removed", "nameChanged", "classChanged",
+        "uuidChanged", "scanStarted", "snapshotBuilt"
+    };
+
     private Context mContext;
-    private final List<CachedBluetoothDevice> mCachedDevices =
+
+    /** Devices in the order they were added; only changed while holding this. */
+    private final ArrayList<CachedBluetoothDevice> mCachedDevices =
             new ArrayList<CachedBluetoothDevice>();
+    /** Same devices by address, readable without holding this. */
+    private final ConcurrentHashMap<String, CachedBluetoothDevice> mDevicesByAddress =
+            new ConcurrentHashMap<String, CachedBluetoothDevice>();
+    /** Immutable copy of mCachedDevices, or null when it needs to be rebuilt. */
+    private volatile List<CachedBluetoothDevice> mSnapshot;
+
+    /** Counted without locking, as lookups happen on every broadcast. */
+    private final AtomicIntegerArray mEventCounts = new AtomicIntegerArray(EVENT_COUNT);
 
     CachedBluetoothDeviceManager(Context context) {
         mContext = context;
     }
 
-    public synchronized Collection<CachedBluetoothDevice> getCachedDevicesCopy() {
-        return new ArrayList<CachedBluetoothDevice>(mCachedDevices);
+    /**
+     * Returns an immutable snapshot of the cached devices; later changes
+     * aren't reflected in it.
+     */
+    public Collection<CachedBluetoothDevice> getCachedDevicesCopy() {
+        List<CachedBluetoothDevice> snapshot = mSnapshot;
+        if (snapshot == null) {
+            synchronized (this) {
+                snapshot = mSnapshot;
+                if (snapshot == null) {
+                    snapshot = Collections.unmodifiableList(
+                            new ArrayList<CachedBluetoothDevice>(mCachedDevices));
+                    mSnapshot = snapshot;
+                    countEvent(EVENT_SNAPSHOT_BUILT);
+                }
+            }
+        }
+        return snapshot;
     }
 
     public static boolean onDeviceDisappeared(CachedBluetoothDevice cachedDevice) {
@@ -50,6 +99,7 @@ final class CachedBluetoothDeviceManager {
     }
 
     public void onDeviceNameUpdated(BluetoothDevice device) {
+        countEvent(EVENT_NAME_CHANGED);
         CachedBluetoothDevice cachedDevice = findDevice(device);
         if (cachedDevice != null) {
             cachedDevice.refreshName();
@@ -67,12 +117,13 @@ final class CachedBluetoothDeviceManager {
      *   not been previously seen
      */
     CachedBluetoothDevice findDevice(BluetoothDevice device) {
-        for (CachedBluetoothDevice cachedDevice : mCachedDevices) {
-            if (cachedDevice.getDevice().equals(device)) {
-                return cachedDevice;
-            }
+        countEvent(EVENT_LOOKUP);
+        final CachedBluetoothDevice cachedDevice = (device != null)
+                ? mDevicesByAddress.get(device.getAddress()) : null;
+        if (cachedDevice == null) {
+            countEvent(EVENT_LOOKUP_MISS);
         }
-        return null;
+        return cachedDevice;
     }
 
     /**
@@ -86,7 +137,17 @@ final class CachedBluetoothDeviceManager {
             BluetoothDevice device) {
         CachedBluetoothDevice newDevice = new CachedBluetoothDevice(mContext, adapter,
             profileManager, device);
-        mCachedDevices.add(newDevice);
+        synchronized (this) {
+            final CachedBluetoothDevice old = mDevicesByAddress.put(device.getAddress(),
+                    newDevice);
+            if (old != null) {
+                // Shouldn't happen, but don't list the address twice.
+                mCachedDevices.remove(old);
+            }
+            mCachedDevices.add(newDevice);
+            mSnapshot = null;
+        }
+        countEvent(EVENT_DEVICE_ADDED);
         return newDevice;
     }
 
@@ -110,25 +171,26 @@ final class CachedBluetoothDeviceManager {
         return device.getAddress();
     }
 
-    public synchronized void onScanningStateChanged(boolean started) {
+    public void onScanningStateChanged(boolean started) {
         if (!started) return;
+        countEvent(EVENT_SCAN_STARTED);
 
         // If starting a new scan, clear old visibility
-        // Iterate in reverse order since devices may be removed.
-        for (int i = mCachedDevices.size() - 1; i >= 0; i--) {
-            CachedBluetoothDevice cachedDevice = mCachedDevices.get(i);
+        for (CachedBluetoothDevice cachedDevice : getCachedDevicesCopy()) {
             cachedDevice.setVisible(false);
         }
     }
 
-    public synchronized void onBtClassChanged(BluetoothDevice device) {
+    public void onBtClassChanged(BluetoothDevice device) {
+        countEvent(EVENT_CLASS_CHANGED);
         CachedBluetoothDevice cachedDevice = findDevice(device);
         if (cachedDevice != null) {
             cachedDevice.refreshBtClass();
         }
     }
 
-    public synchronized void onUuidChanged(BluetoothDevice device) {
+    public void onUuidChanged(BluetoothDevice device) {
+        countEvent(EVENT_UUID_CHANGED);
         CachedBluetoothDevice cachedDevice = findDevice(device);
         if (cachedDevice != null) {
             cachedDevice.onUuidChanged();
@@ -144,6 +206,9 @@ final class CachedBluetoothDeviceManager {
                 if (cachedDevice.getBondState() != BluetoothDevice.BOND_BONDED) {
                    cachedDevice.setVisible(false);
                    mCachedDevices.remove(i);
+                   mDevicesByAddress.remove(cachedDevice.getDevice().getAddress());
+                   mSnapshot = null;
+                   countEvent(EVENT_DEVICE_REMOVED);
                 } else {
                     // For bonded devices, we need to clear the connection status so that
                     // when BT is enabled next time, device connection status shall be retrieved
@@ -151,8 +216,31 @@ final class CachedBluetoothDeviceManager {
                     cachedDevice.clearProfileConnectionState();
                 }
             }
+            log("Cleared non-bonded devices, " + this);
         }
     }
+
+    /**
+     * Returns how many times the given event happened, e.g. {@link #EVENT_LOOKUP}.
+     */
+    int getEventCount(int event) {
+        return mEventCounts.get(event);
+    }
+
+    private void countEvent(int event) {
+        mEventCounts.incrementAndGet(event);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("CachedBluetoothDeviceManager{devices=");
+        sb.append(mDevicesByAddress.size());
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            sb.append(' ').append(EVENT_NAMES[i]).append('=').append(mEventCounts.get(i));
+        }
+        return sb.append('}').toString();
+    }
+
     private void log(String msg) {
         if (DEBUG) {
             Log.d(TAG, msg);
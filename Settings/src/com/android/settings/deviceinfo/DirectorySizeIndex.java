@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.content.Context;
+import android.os.FileObserver;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Persistent index of directory sizes used by {@link StorageMeasurement}.
+ * Every directory of a measured tree is recorded with its modification time,
+ * the total size of the files directly in it and the names of its
+ * subdirectories.  A directory whose modification time hasn't changed is not
+ * listed again: only its subdirectories are checked.
+ * <p>
+ * Adding, removing or renaming a file changes the modification time of its
+ * directory, but rewriting a file in place doesn't.  So directories holding
+ * files that were just written aren't recorded, and every directory is
+ * listed again once its entry is {@link #REVALIDATE_AGE} old.  The measured
+ * roots are also watched with a {@link FileObserver} while a
+ * {@link StorageMeasurement} uses them; they are listed again after that.
+ */
+class DirectorySizeIndex {
+    private static final String TAG = "DirectorySizeIndex";
+    private static final boolean DEBUG = false;
+
+    static final String FILE_NAME = "directory_sizes.index";
+
+    private static final int MAGIC = 0x44495253; // 'DIRS'
+    private static final int VERSION = 2;
+
+    /** Deepest directory walked, which also keeps symlink loops finite. */
+    private static final int MAX_DEPTH = 64;
+
+    /** Entries not used for this long are dropped when the index is written. */
+    private static final long STALE_AGE = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Directories modified more recently than this, or holding files that
+     * were, aren't recorded: a change within the file system's time
+     * granularity, or a file still being written, wouldn't be noticed.
+     */
+    private static final long MIN_SETTLED_AGE = 2 * 1000;
+
+    private static final long DAY = 24 * 60 * 60 * 1000;
+
+    /** Entries are trusted for this long after their directory was listed. */
+    private static final long REVALIDATE_AGE = DAY;
+
+    private static final int WATCH_MASK = FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE
+            | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private static DirectorySizeIndex sInstance;
+
+    private static class Entry {
+        long mtime;
+        long filesSize;
+        String[] subdirs;
+        long listed;
+        long lastUsed;
+    }
+
+    private final AtomicFile mFile;
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    private final HashMap<String, RootObserver> mObservers = new HashMap<String, RootObserver>();
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    private int mWalkedCount;
+    private int mSkippedCount;
+
+    static DirectorySizeIndex getInstance(Context context) {
+        synchronized (DirectorySizeIndex.class) {
+            if (sInstance == null) {
+                sInstance = new DirectorySizeIndex(context.getApplicationContext().getFilesDir());
+            }
+            return sInstance;
+        }
+    }
+
+    private DirectorySizeIndex(File dir) {
+        mFile = new AtomicFile(new File(dir, FILE_NAME));
+    }
+
+    /**
+     * Drops the index entry of a directory whose direct files changed.
+     */
+    private class RootObserver extends FileObserver {
+        final String mPath;
+        /** Whoever measured this root since it was last released. */
+        final ArrayList<Object> mOwners = new ArrayList<Object>(1);
+
+        RootObserver(String path) {
+            super(path, WATCH_MASK);
+            mPath = path;
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            if (DEBUG) Log.d(TAG, "Event " + event + " for " + path + " in " + mPath);
+            synchronized (mEntries) {
+                if (mEntries.remove(mPath) != null) {
+                    mDirty = true;
+                }
+                if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+                    stopWatching();
+                    mObservers.remove(mPath);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the size of everything under the given directory, reusing the
+     * index for directories that haven't changed.  Returns -1 if the tree
+     * can't be read from this process, including when the directory itself
+     * can't be seen.
+     */
+    long measure(File dir, Object owner) {
+        synchronized (mEntries) {
+            if (!mLoaded) {
+                mLoaded = true;
+                readLocked();
+            }
+        }
+        watch(dir, owner);
+        return walk(dir, System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * Stops watching the roots measured for the given owner, unless someone
+     * else measured them too.  Since changes to them can't be seen anymore,
+     * their entries are dropped.
+     */
+    void release(Object owner) {
+        synchronized (mEntries) {
+            final Iterator<RootObserver> it = mObservers.values().iterator();
+            while (it.hasNext()) {
+                final RootObserver observer = it.next();
+                if (observer.mOwners.remove(owner) && observer.mOwners.isEmpty()) {
+                    observer.stopWatching();
+                    it.remove();
+                    if (mEntries.remove(observer.mPath) != null) {
+                        mDirty = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private long walk(File dir, long now, int depth) {
+        final String path = dir.getPath();
+        final long mtime = dir.lastModified();
+        if (mtime == 0) {
+            // Gone, or not readable.  A root we can't see may still exist in
+            // another mount namespace, such as another user's storage, so
+            // leave it to the caller.
+            return depth > 0 && !dir.exists() ? 0 : -1;
+        }
+
+        Entry entry;
+        Entry oldEntry;
+        synchronized (mEntries) {
+            entry = oldEntry = mEntries.get(path);
+            if (entry != null && entry.mtime == mtime && now - entry.listed < REVALIDATE_AGE) {
+                if (now - entry.lastUsed > DAY) {
+                    entry.lastUsed = now;
+                    mDirty = true;
+                }
+                mSkippedCount++;
+            } else {
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
+            final File[] files = dir.listFiles();
+            if (files == null) {
+                return -1;
+            }
+            long filesSize = 0;
+            long newest = mtime;
+            final ArrayList<String> subdirs = new ArrayList<String>();
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    subdirs.add(file.getName());
+                } else if (file.isFile()) {
+                    filesSize += file.length();
+                    newest = Math.max(newest, file.lastModified());
+                }
+            }
+            entry = new Entry();
+            entry.mtime = mtime;
+            entry.filesSize = filesSize;
+            entry.subdirs = subdirs.toArray(new String[subdirs.size()]);
+            entry.listed = now;
+            entry.lastUsed = now;
+            synchronized (mEntries) {
+                if (oldEntry != null) {
+                    // Forget whatever was under subdirectories that are gone.
+                    for (String name : oldEntry.subdirs) {
+                        if (!subdirs.contains(name)) {
+                            removeTreeLocked(new File(dir, name).getPath());
+                        }
+                    }
+                }
+                if (now - newest >= MIN_SETTLED_AGE) {
+                    mEntries.put(path, entry);
+                } else {
+                    mEntries.remove(path);
+                }
+                mDirty = true;
+                mWalkedCount++;
+            }
+        }
+
+        long size = entry.filesSize;
+        if (depth < MAX_DEPTH) {
+            for (String name : entry.subdirs) {
+                final long subdirSize = walk(new File(dir, name), now, depth + 1);
+                if (subdirSize < 0) {
+                    return -1;
+                }
+                size += subdirSize;
+            }
+        }
+        return size;
+    }
+
+    private void removeTreeLocked(String path) {
+        final Entry entry = mEntries.remove(path);
+        if (entry != null) {
+            for (String name : entry.subdirs) {
+                removeTreeLocked(new File(path, name).getPath());
+            }
+        }
+    }
+
+    private void watch(File dir, Object owner) {
+        final String path = dir.getPath();
+        synchronized (mEntries) {
+            RootObserver observer = mObservers.get(path);
+            if (observer == null) {
+                observer = new RootObserver(path);
+                observer.startWatching();
+                mObservers.put(path, observer);
+            }
+            if (!observer.mOwners.contains(owner)) {
+                observer.mOwners.add(owner);
+            }
+        }
+    }
+
+    /**
+     * Writes the index if it changed since it was last read or written.
+     */
+    void save() {
+        final ArrayList<String> paths;
+        final ArrayList<Entry> entries;
+        synchronized (mEntries) {
+            if (!mDirty) {
+                return;
+            }
+            mDirty = false;
+            final long oldest = System.currentTimeMillis() - STALE_AGE;
+            final Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().getValue().lastUsed < oldest) {
+                    it.remove();
+                }
+            }
+            paths = new ArrayList<String>(mEntries.keySet());
+            entries = new ArrayList<Entry>(paths.size());
+            for (String path : paths) {
+                entries.add(mEntries.get(path));
+            }
+        }
+
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(paths.size());
+            for (int i=0; i<paths.size(); i++) {
+                final Entry entry = entries.get(i);
+                out.writeUTF(paths.get(i));
+                out.writeLong(entry.mtime);
+                out.writeLong(entry.filesSize);
+                out.writeLong(entry.listed);
+                out.writeLong(entry.lastUsed);
+                out.writeInt(entry.subdirs.length);
+                for (String name : entry.subdirs) {
+                    out.writeUTF(name);
+                }
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            if (DEBUG) Log.i(TAG, "Wrote " + paths.size() + " entries " + this);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write index", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+
+    private void readLocked() {
+        if (!mFile.getBaseFile().exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                if (DEBUG) Log.i(TAG, "Ignoring index with unknown version");
+                return;
+            }
+            final int count = in.readInt();
+            for (int i=0; i<count; i++) {
+                final String path = in.readUTF();
+                final Entry entry = new Entry();
+                entry.mtime = in.readLong();
+                entry.filesSize = in.readLong();
+                entry.listed = in.readLong();
+                entry.lastUsed = in.readLong();
+                entry.subdirs = new String[in.readInt()];
+                for (int j=0; j<entry.subdirs.length; j++) {
+                    entry.subdirs[j] = in.readUTF();
+                }
+                mEntries.put(path, entry);
+            }
+            if (DEBUG) Log.i(TAG, "Read " + count + " entries from index");
+        } catch (EOFException e) {
+            Log.w(TAG, "Truncated index", e);
+            mEntries.clear();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read index", e);
+            mEntries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mEntries) {
+            return "DirectorySizeIndex{entries=" + mEntries.size() + " walked=" + mWalkedCount
+                    + " skipped=" + mSkippedCount + " watched=" + mObservers.size() + "}";
+        }
+    }
+}
@@ -16,9 +16,10 @@
 
 package com.android.settings.deviceinfo;
 
-import android.app.Activity;
 import android.app.ListActivity;
+import android.app.ProgressDialog;
 import android.content.Context;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.storage.StorageVolume;
 import android.text.format.Formatter;
@@ -43,10 +44,12 @@ import com.android.settings.deviceinfo.StorageMeasurement.FileInfo;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.HashSet;
 
 /**
- * This class handles the selection and removal of Misc files.
+ * This class handles the selection and removal of Misc files.  The list is
+ * loaded and files are deleted in the background, so that folders with very
+ * many entries don't block the UI.
  */
 public class MiscFilesHandler extends ListActivity {
     private static final String TAG = "MemorySettings";
@@ -54,6 +57,9 @@ public class MiscFilesHandler extends ListActivity {
     private String mNumBytesSelectedFormat;
     private MemoryMearurementAdapter mAdapter;
     private LayoutInflater mInflater;
+    private StorageMeasurement mMeasurement;
+    private LoadTask mLoadTask;
+    private DeleteTask mDeleteTask;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -62,6 +68,9 @@ public class MiscFilesHandler extends ListActivity {
         setTitle(R.string.misc_files);
         mNumSelectedFormat = getString(R.string.misc_files_selected_count);
         mNumBytesSelectedFormat = getString(R.string.misc_files_selected_count_bytes);
+        final StorageVolume storageVolume = getIntent().getParcelableExtra(
+                StorageVolume.EXTRA_STORAGE_VOLUME);
+        mMeasurement = StorageMeasurement.getInstance(this, storageVolume);
         mAdapter = new MemoryMearurementAdapter(this);
         mInflater = (LayoutInflater)getSystemService(Context.LAYOUT_INFLATER_SERVICE);
         setContentView(R.layout.settings_storage_miscfiles_list);
@@ -70,15 +79,135 @@ public class MiscFilesHandler extends ListActivity {
         lv.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
         lv.setMultiChoiceModeListener(new ModeCallback(this));
         setListAdapter(mAdapter);
-    } 
+        mLoadTask = new LoadTask();
+        mLoadTask.execute();
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+        }
+        if (mDeleteTask != null) {
+            // Deleting carries on; only the progress goes away.
+            mDeleteTask.detach();
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Takes the misc files of the last measurement and orders the first page
+     * of them.
+     */
+    private class LoadTask extends AsyncTask<Void, Void, MiscFilesModel> {
+        @Override
+        protected MiscFilesModel doInBackground(Void... params) {
+            return new MiscFilesModel(mMeasurement.mFileInfoForMisc);
+        }
+
+        @Override
+        protected void onPostExecute(MiscFilesModel model) {
+            mLoadTask = null;
+            mAdapter.setModel(model);
+        }
+    }
+
+    /**
+     * Deletes files in the background, showing how many are done.
+     */
+    private class DeleteTask extends AsyncTask<FileInfo, Integer, HashSet<FileInfo>> {
+        private ProgressDialog mProgress;
+        private boolean mDetached;
+
+        void detach() {
+            mDetached = true;
+            dismissProgress();
+        }
+
+        @Override
+        protected void onPreExecute() {
+            mProgress = new ProgressDialog(MiscFilesHandler.this);
+            mProgress.setMessage(getString(R.string.misc_files_deleting));
+            mProgress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            mProgress.setCancelable(false);
+            mProgress.show();
+        }
+
+        @Override
+        protected HashSet<FileInfo> doInBackground(FileInfo... files) {
+            final HashSet<FileInfo> deleted = new HashSet<FileInfo>();
+            for (int i = 0; i < files.length; i++) {
+                if (StorageMeasurement.LOGV) {
+                    Log.i(TAG, "deleting: " + files[i]);
+                }
+                // delete the file
+                File file = new File(files[i].mFileName);
+                if (file.isDirectory()) {
+                    deleteDir(file);
+                } else {
+                    file.delete();
+                }
+                deleted.add(files[i]);
+                publishProgress(i + 1, files.length);
+            }
+            return deleted;
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            if (mProgress != null) {
+                mProgress.setMax(values[1]);
+                mProgress.setProgress(values[0]);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(HashSet<FileInfo> deleted) {
+            // Sizes shown by the storage screen are out of date now.
+            mMeasurement.invalidate();
+            if (mDetached) {
+                return;
+            }
+            mDeleteTask = null;
+            dismissProgress();
+            mAdapter.removeAll(deleted);
+            getListView().clearChoices();
+            mAdapter.notifyDataSetChanged();
+        }
+
+        private void dismissProgress() {
+            if (mProgress != null) {
+                mProgress.dismiss();
+                mProgress = null;
+            }
+        }
+    }
+
+    // Deletes all files and subdirectories under given dir.
+    // Returns true if all deletions were successful.
+    // If a deletion fails, the method stops attempting to delete and returns false.
+    private static boolean deleteDir(File dir) {
+        if (dir.isDirectory()) {
+            String[] children = dir.list();
+            if (children == null) {
+                return false;
+            }
+            for (int i=0; i < children.length; i++) {
+                boolean success = deleteDir(new File(dir, children[i]));
+                if (!success) {
+                    return false;
+                }
+            }
+        }
+        // The directory is now empty so delete it
+        return dir.delete();
+    }
 
     private class ModeCallback implements ListView.MultiChoiceModeListener {
-        private int mDataCount;
         private final Context mContext;
 
         public ModeCallback(Context context) {
             mContext = context;
-            mDataCount = mAdapter.getCount();
         }
 
         public boolean onCreateActionMode(ActionMode mode, Menu menu) {
@@ -97,40 +226,29 @@ public class MiscFilesHandler extends ListActivity {
             case R.id.action_delete:
                 // delete the files selected
                 SparseBooleanArray checkedItems = lv.getCheckedItemPositions();
+                final int dataCount = mAdapter.getCount();
                 int checkedCount = getListView().getCheckedItemCount();
-                if (checkedCount > mDataCount) {
+                if (checkedCount > dataCount) {
                     throw new IllegalStateException("checked item counts do not match. " +
-                            "checkedCount: " + checkedCount + ", dataSize: " + mDataCount);
+                            "checkedCount: " + checkedCount + ", dataSize: " + dataCount);
                 }
-                if (mDataCount > 0) {
-                    ArrayList<Object> toRemove = new ArrayList<Object>();
-                    for (int i = 0; i < mDataCount; i++) {
-                        if (!checkedItems.get(i)) {
-                            //item not selected
-                            continue;
-                        }
-                        if (StorageMeasurement.LOGV) {
-                            Log.i(TAG, "deleting: " + mAdapter.getItem(i));
+                if (checkedCount > 0 && mDeleteTask == null) {
+                    final ArrayList<FileInfo> toRemove = new ArrayList<FileInfo>(checkedCount);
+                    for (int i = 0; i < checkedItems.size(); i++) {
+                        if (checkedItems.valueAt(i)) {
+                            toRemove.add(mAdapter.getItem(checkedItems.keyAt(i)));
                         }
-                        // delete the file
-                        File file = new File(mAdapter.getItem(i).mFileName);
-                        if (file.isDirectory()) {
-                            deleteDir(file);
-                        } else {
-                            file.delete();                            
-                        }
-                        toRemove.add(mAdapter.getItem(i));
                     }
-                    mAdapter.removeAll(toRemove);
-                    mAdapter.notifyDataSetChanged();
-                    mDataCount = mAdapter.getCount();
+                    mDeleteTask = new DeleteTask();
+                    mDeleteTask.execute(toRemove.toArray(new FileInfo[toRemove.size()]));
                 }
                 mode.finish();
                 break;
 
             case R.id.action_select_all:
                 // check ALL items
-                for (int i = 0; i < mDataCount; i++) {
+                final int count = mAdapter.getCount();
+                for (int i = 0; i < count; i++) {
                     lv.setItemChecked(i, true);
                 }
                 // update the title and subtitle with number selected and numberBytes selected
@@ -140,23 +258,6 @@ public class MiscFilesHandler extends ListActivity {
             return true;
         }
 
-        // Deletes all files and subdirectories under given dir.
-        // Returns true if all deletions were successful.
-        // If a deletion fails, the method stops attempting to delete and returns false.
-        private boolean deleteDir(File dir) {
-            if (dir.isDirectory()) {
-                String[] children = dir.list();
-                for (int i=0; i < children.length; i++) {
-                    boolean success = deleteDir(new File(dir, children[i]));
-                    if (!success) {
-                        return false;
-                    }
-                }
-            }
-            // The directory is now empty so delete it
-            return dir.delete();
-        }
-
         public void onDestroyActionMode(ActionMode mode) {
             // This block intentionally left blank
         }
@@ -171,10 +272,10 @@ public class MiscFilesHandler extends ListActivity {
             SparseBooleanArray checkedItems = lv.getCheckedItemPositions();
             long selectedDataSize = 0;
             if (numChecked > 0) {
-                for (int i = 0; i < mDataCount; i++) {
-                    if (checkedItems.get(i)) {
+                for (int i = 0; i < checkedItems.size(); i++) {
+                    if (checkedItems.valueAt(i)) {
                         // item is checked
-                        selectedDataSize += mAdapter.getItem(i).mSize;
+                        selectedDataSize += mAdapter.getItem(checkedItems.keyAt(i)).mSize;
                     }
                 }
             }
@@ -185,63 +286,46 @@ public class MiscFilesHandler extends ListActivity {
     }
 
     class MemoryMearurementAdapter extends BaseAdapter {
-        private ArrayList<StorageMeasurement.FileInfo> mData = null;
-        private long mDataSize = 0;
+        private MiscFilesModel mModel = null;
         private Context mContext;
 
-        public MemoryMearurementAdapter(Activity activity) {
-            mContext = activity;
-            final StorageVolume storageVolume = activity.getIntent().getParcelableExtra(
-                    StorageVolume.EXTRA_STORAGE_VOLUME);
-            StorageMeasurement mMeasurement = StorageMeasurement.getInstance(
-                    activity, storageVolume);
-            if (mMeasurement == null) return;
-            mData = (ArrayList<StorageMeasurement.FileInfo>) mMeasurement.mFileInfoForMisc;
-            if (mData != null) {
-                for (StorageMeasurement.FileInfo info : mData) {
-                    mDataSize += info.mSize;
-                }
-            }
+        public MemoryMearurementAdapter(Context context) {
+            mContext = context;
+        }
+
+        void setModel(MiscFilesModel model) {
+            mModel = model;
+            notifyDataSetChanged();
         }
 
         @Override
         public int getCount() {
-            return (mData == null) ? 0 : mData.size();
+            return (mModel == null) ? 0 : mModel.getCount();
         }
 
         @Override
         public StorageMeasurement.FileInfo getItem(int position) {
-            if (mData == null || mData.size() <= position) {
+            if (mModel == null) {
                 return null;
             }
-            return mData.get(position);
+            return mModel.get(position);
         }
 
         @Override
         public long getItemId(int position) {
-            if (mData == null || mData.size() <= position) {
-                return 0;
-            }
-            return mData.get(position).mId;
+            final FileInfo item = getItem(position);
+            return (item == null) ? 0 : item.mId;
         }
 
-        public void removeAll(List<Object> objs) {
-            if (mData == null) {
+        public void removeAll(HashSet<FileInfo> objs) {
+            if (mModel == null) {
                 return;
             }
-            for (Object o : objs) {
-                mData.remove(o);
-                mDataSize -= ((StorageMeasurement.FileInfo) o).mSize;
-            }
+            mModel.removeAll(objs);
         }
 
         public long getDataSize() {
-            return mDataSize;
-        }
-
-        @Override
-        public void notifyDataSetChanged() {
-            super.notifyDataSetChanged();
+            return (mModel == null) ? 0 : mModel.getTotalSize();
         }
 
         @Override
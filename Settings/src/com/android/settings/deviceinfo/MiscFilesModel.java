@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import com.android.settings.deviceinfo.StorageMeasurement.FileInfo;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The misc files of a {@link StorageMeasurement}, ordered by size descending
+ * a page at a time: only the entries up to the last one shown are ordered,
+ * using a heap of the next page, and each page is twice as large as the one
+ * before so that scrolling to the end costs about as much as one full sort.
+ */
+class MiscFilesModel {
+    static final int FIRST_PAGE_SIZE = 64;
+
+    private FileInfo[] mEntries;
+    private int mCount;
+    /** The first {@link #mSorted} entries are in their final order. */
+    private int mSorted;
+    private int mPageSize = FIRST_PAGE_SIZE;
+    private long mTotalSize;
+
+    MiscFilesModel(List<FileInfo> files) {
+        mEntries = files != null ? files.toArray(new FileInfo[files.size()]) : new FileInfo[0];
+        mCount = mEntries.length;
+        for (int i = 0; i < mCount; i++) {
+            mTotalSize += mEntries[i].mSize;
+        }
+        sortThrough(0);
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    long getTotalSize() {
+        return mTotalSize;
+    }
+
+    FileInfo get(int position) {
+        if (position < 0 || position >= mCount) {
+            return null;
+        }
+        sortThrough(position);
+        return mEntries[position];
+    }
+
+    /**
+     * Drop the given entries, keeping the order of the rest.
+     */
+    void removeAll(Collection<FileInfo> removed) {
+        int kept = 0;
+        int keptSorted = 0;
+        for (int i = 0; i < mCount; i++) {
+            final FileInfo info = mEntries[i];
+            if (removed.contains(info)) {
+                mTotalSize -= info.mSize;
+                continue;
+            }
+            if (i < mSorted) keptSorted++;
+            mEntries[kept++] = info;
+        }
+        for (int i = kept; i < mCount; i++) {
+            mEntries[i] = null;
+        }
+        mCount = kept;
+        mSorted = keptSorted;
+    }
+
+    private void sortThrough(int position) {
+        while (position >= mSorted && mSorted < mCount) {
+            final int count = Math.min(mPageSize, mCount - mSorted);
+            partialSort(mSorted, count);
+            mSorted += count;
+            mPageSize *= 2;
+        }
+    }
+
+    /**
+     * Move the {@code count} largest entries of {@code mEntries[from..]} to
+     * its front in descending order, using a heap of {@code count} entries
+     * so that the rest only needs to be compared against the smallest.
+     */
+    private void partialSort(int from, int count) {
+        final FileInfo[] entries = mEntries;
+        // heap of smallest entry at entries[from], among entries[from..from+count)
+        for (int i = count / 2 - 1; i >= 0; i--) {
+            siftDown(from, i, count);
+        }
+        for (int i = from + count; i < mCount; i++) {
+            if (entries[i].compareTo(entries[from]) < 0) {
+                final FileInfo tmp = entries[i];
+                entries[i] = entries[from];
+                entries[from] = tmp;
+                siftDown(from, 0, count);
+            }
+        }
+        // repeatedly move smallest to the end, leaving largest first
+        for (int end = count - 1; end > 0; end--) {
+            final FileInfo tmp = entries[from + end];
+            entries[from + end] = entries[from];
+            entries[from] = tmp;
+            siftDown(from, 0, end);
+        }
+    }
+
+    private void siftDown(int from, int i, int count) {
+        final FileInfo[] entries = mEntries;
+        while (true) {
+            final int left = 2 * i + 1;
+            if (left >= count) break;
+            int smallest = left;
+            final int right = left + 1;
+            if (right < count && entries[from + smallest].compareTo(entries[from + right]) < 0) {
+                smallest = right;
+            }
+            if (entries[from + i].compareTo(entries[from + smallest]) >= 0) break;
+            final FileInfo tmp = entries[from + i];
+            entries[from + i] = entries[from + smallest];
+            entries[from + smallest] = tmp;
+            i = smallest;
+        }
+    }
+}
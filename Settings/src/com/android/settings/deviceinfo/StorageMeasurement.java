@@ -46,10 +46,12 @@ import com.google.common.collect.Sets;
 import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -57,6 +59,10 @@ import javax.annotation.concurrent.GuardedBy;
  * Utility for measuring the disk usage of internal storage or a physical
  * {@link StorageVolume}. Connects with a remote {@link IMediaContainerService}
  * and delivers results to {@link MeasurementReceiver}.
+ * <p>
+ * Directories are measured concurrently on a small shared pool, and partial
+ * results are delivered as they arrive, at most every
+ * {@link #PARTIAL_UPDATE_INTERVAL} milliseconds.
  */
 public class StorageMeasurement {
     private static final String TAG = "StorageMeasurement";
@@ -77,6 +83,20 @@ public class StorageMeasurement {
             Environment.DIRECTORY_RINGTONES, Environment.DIRECTORY_PODCASTS,
             Environment.DIRECTORY_DOWNLOADS, Environment.DIRECTORY_ANDROID);
 
+    /** Number of directories measured at the same time, across all volumes. */
+    private static final int MEASURE_THREADS = 3;
+
+    /** Minimum time between partial updates to the receiver. */
+    private static final long PARTIAL_UPDATE_INTERVAL = 250;
+
+    private static final ThreadPoolExecutor sMeasureExecutor = new ThreadPoolExecutor(
+            MEASURE_THREADS, MEASURE_THREADS, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sMeasureExecutor.allowCoreThreadTimeOut(true);
+    }
+
     @GuardedBy("sInstances")
     private static HashMap<StorageVolume, StorageMeasurement> sInstances = Maps.newHashMap();
 
@@ -141,6 +161,25 @@ public class StorageMeasurement {
          * internal storage. Key is {@link UserHandle}.
          */
         public SparseLongArray usersSize = new SparseLongArray();
+
+        /**
+         * True while some sizes are still being measured, in which case sizes
+         * that are zero may simply not be known yet.
+         */
+        public boolean partial;
+
+        MeasurementDetails copy() {
+            final MeasurementDetails copy = new MeasurementDetails();
+            copy.totalSize = totalSize;
+            copy.availSize = availSize;
+            copy.appsSize = appsSize;
+            copy.cacheSize = cacheSize;
+            copy.mediaSize = new HashMap<String, Long>(mediaSize);
+            copy.miscSize = miscSize;
+            copy.usersSize = usersSize.clone();
+            copy.partial = partial;
+            return copy;
+        }
     }
 
     public interface MeasurementReceiver {
@@ -161,7 +200,7 @@ public class StorageMeasurement {
     private long mTotalSize;
     private long mAvailSize;
 
-    List<FileInfo> mFileInfoForMisc;
+    volatile List<FileInfo> mFileInfoForMisc;
 
     private StorageMeasurement(Context context, StorageVolume volume) {
         mVolume = volume;
@@ -279,12 +318,76 @@ public class StorageMeasurement {
         }
     }
 
+    /**
+     * State of one run of {@link MeasurementHandler#measureExactStorage}.
+     * {@link #details} and {@link #miscFiles} are filled in from the pool and
+     * binder threads while synchronized on {@link #details}; everything else
+     * is only touched on the handler thread.
+     */
+    private static class Measurement {
+        final MeasurementDetails details;
+        final ArrayList<FileInfo> miscFiles = new ArrayList<FileInfo>();
+        final DirectorySizeIndex index;
+        /** What the index watches the measured directories for. */
+        final StorageMeasurement owner;
+
+        /** Parts still being measured; the run itself counts as one. */
+        int remaining = 1;
+
+        /** Set when invalidated while running; the result is then dropped. */
+        boolean superseded;
+
+        Measurement(MeasurementDetails details, DirectorySizeIndex index,
+                StorageMeasurement owner) {
+            this.details = details;
+            this.index = index;
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * Measures one directory on {@link #sMeasureExecutor} and adds its size
+     * to the details, then reports the part as done.
+     */
+    private abstract static class DirectoryTask implements Runnable {
+        final DirectorySizeIndex mIndex;
+        final IMediaContainerService mImcs;
+        final File mPath;
+        final Measurement mMeasurement;
+        final Message mDone;
+
+        DirectoryTask(IMediaContainerService imcs, File path, Measurement measurement,
+                Message done) {
+            mIndex = measurement.index;
+            mImcs = imcs;
+            mPath = path;
+            mMeasurement = measurement;
+            mDone = done;
+        }
+
+        @Override
+        public void run() {
+            long size = mIndex.measure(mPath, mMeasurement.owner);
+            if (size < 0) {
+                // Not readable from here; let the container service walk it.
+                size = getDirectorySize(mImcs, mPath);
+            }
+            synchronized (mMeasurement.details) {
+                addSizeLocked(size);
+            }
+            mDone.sendToTarget();
+        }
+
+        abstract void addSizeLocked(long size);
+    }
+
     private class MeasurementHandler extends Handler {
         public static final int MSG_MEASURE = 1;
         public static final int MSG_CONNECTED = 2;
         public static final int MSG_DISCONNECT = 3;
-        public static final int MSG_COMPLETED = 4;
         public static final int MSG_INVALIDATE = 5;
+        public static final int MSG_PART_COMPLETED = 6;
+        public static final int MSG_PARTIAL_UPDATE = 7;
 
         private Object mLock = new Object();
 
@@ -294,6 +397,12 @@ public class StorageMeasurement {
 
         private MeasurementDetails mCached;
 
+        /** Running measurement, if any; only one runs at a time. */
+        private Measurement mCurrent;
+
+        /** Whether to measure again once the superseded {@link #mCurrent} is done. */
+        private boolean mMeasureAgain;
+
         private final WeakReference<Context> mContext;
 
         private final ServiceConnection mDefContainerConn = new ServiceConnection() {
@@ -326,6 +435,12 @@ public class StorageMeasurement {
                         sendExactUpdate(mCached);
                         break;
                     }
+                    if (mCurrent != null) {
+                        // Its result is delivered when it completes, or it
+                        // is out of date and we start over once it stops.
+                        mMeasureAgain |= mCurrent.superseded;
+                        break;
+                    }
 
                     final Context context = (mContext != null) ? mContext.get() : null;
                     if (context == null) {
@@ -347,10 +462,15 @@ public class StorageMeasurement {
                 case MSG_CONNECTED: {
                     IMediaContainerService imcs = (IMediaContainerService) msg.obj;
                     measureApproximateStorage(imcs);
-                    measureExactStorage(imcs);
+                    if (mCurrent == null) {
+                        measureExactStorage(imcs);
+                    } else {
+                        mMeasureAgain |= mCurrent.superseded;
+                    }
                     break;
                 }
                 case MSG_DISCONNECT: {
+                    releaseIndex();
                     synchronized (mLock) {
                         if (mBound) {
                             final Context context = (mContext != null) ? mContext.get() : null;
@@ -364,13 +484,29 @@ public class StorageMeasurement {
                     }
                     break;
                 }
-                case MSG_COMPLETED: {
-                    mCached = (MeasurementDetails) msg.obj;
-                    sendExactUpdate(mCached);
-                    break;
-                }
                 case MSG_INVALIDATE: {
                     mCached = null;
+                    if (mCurrent != null) {
+                        mCurrent.superseded = true;
+                        removeMessages(MSG_PARTIAL_UPDATE);
+                    }
+                    break;
+                }
+                case MSG_PART_COMPLETED: {
+                    partCompleted((Measurement) msg.obj);
+                    break;
+                }
+                case MSG_PARTIAL_UPDATE: {
+                    final Measurement measurement = (Measurement) msg.obj;
+                    if (measurement == mCurrent && measurement.remaining > 0
+                            && !measurement.superseded) {
+                        final MeasurementDetails partial;
+                        synchronized (measurement.details) {
+                            partial = measurement.details.copy();
+                        }
+                        partial.partial = true;
+                        sendExactUpdate(partial);
+                    }
                     break;
                 }
             }
@@ -397,7 +533,9 @@ public class StorageMeasurement {
             }
 
             final MeasurementDetails details = new MeasurementDetails();
-            final Message finished = obtainMessage(MSG_COMPLETED, details);
+            final Measurement measurement = new Measurement(details,
+                    DirectorySizeIndex.getInstance(context), StorageMeasurement.this);
+            mCurrent = measurement;
 
             details.totalSize = mTotalSize;
             details.availSize = mAvailSize;
@@ -414,10 +552,16 @@ public class StorageMeasurement {
             final boolean measureMedia = (mIsInternal && Environment.isExternalStorageEmulated())
                     || mIsPrimary;
             if (measureMedia) {
-                for (String type : sMeasureMediaTypes) {
+                for (final String type : sMeasureMediaTypes) {
+                    details.mediaSize.put(type, 0L);
                     final File path = currentEnv.getExternalStoragePublicDirectory(type);
-                    final long size = getDirectorySize(imcs, path);
-                    details.mediaSize.put(type, size);
+                    submit(new DirectoryTask(imcs, path, measurement, obtainPartCompleted(
+                            measurement)) {
+                        @Override
+                        void addSizeLocked(long size) {
+                            details.mediaSize.put(type, size);
+                        }
+                    });
                 }
             }
 
@@ -425,15 +569,20 @@ public class StorageMeasurement {
             if (mIsInternal || mIsPrimary) {
                 final File path = mIsInternal ? currentEnv.getExternalStorageDirectory()
                         : mVolume.getPathFile();
-                details.miscSize = measureMisc(imcs, path);
+                measureMisc(imcs, path, measurement);
             }
 
             // Measure total emulated storage of all users; internal apps data
             // will be spliced in later
-            for (UserInfo user : users) {
+            for (final UserInfo user : users) {
                 final UserEnvironment userEnv = new UserEnvironment(user.id);
-                final long size = getDirectorySize(imcs, userEnv.getExternalStorageDirectory());
-                addValue(details.usersSize, user.id, size);
+                submit(new DirectoryTask(imcs, userEnv.getExternalStorageDirectory(),
+                        measurement, obtainPartCompleted(measurement)) {
+                    @Override
+                    void addSizeLocked(long size) {
+                        addValue(details.usersSize, user.id, size);
+                    }
+                });
             }
 
             // Measure all apps for all users
@@ -444,66 +593,131 @@ public class StorageMeasurement {
                         | PackageManager.GET_DISABLED_COMPONENTS);
 
                 final int count = users.size() * apps.size();
-                final StatsObserver observer = new StatsObserver(
-                        mIsInternal, details, currentUser, finished, count);
+                if (count > 0) {
+                    final StatsObserver observer = new StatsObserver(mIsInternal, details,
+                            currentUser, obtainPartCompleted(measurement), count);
 
-                for (UserInfo user : users) {
-                    for (ApplicationInfo app : apps) {
-                        pm.getPackageSizeInfo(app.packageName, user.id, observer);
+                    for (UserInfo user : users) {
+                        for (ApplicationInfo app : apps) {
+                            pm.getPackageSizeInfo(app.packageName, user.id, observer);
+                        }
                     }
                 }
-
-            } else {
-                finished.sendToTarget();
             }
+
+            // Everything is submitted; release the part held by this run.
+            partCompleted(measurement);
         }
-    }
 
-    private static long getDirectorySize(IMediaContainerService imcs, File path) {
-        try {
-            final long size = imcs.calculateDirectorySize(path.toString());
-            Log.d(TAG, "getDirectorySize(" + path + ") returned " + size);
-            return size;
-        } catch (Exception e) {
-            Log.w(TAG, "Could not read memory from default container service for " + path, e);
-            return 0;
+        /**
+         * Lets the index stop watching the directories measured here, as
+         * nothing shows their sizes anymore.
+         */
+        private void releaseIndex() {
+            final Context context = (mContext != null) ? mContext.get() : null;
+            if (context != null) {
+                DirectorySizeIndex.getInstance(context).release(StorageMeasurement.this);
+            }
         }
-    }
 
-    private long measureMisc(IMediaContainerService imcs, File dir) {
-        mFileInfoForMisc = new ArrayList<FileInfo>();
+        private Message obtainPartCompleted(Measurement measurement) {
+            measurement.remaining++;
+            return obtainMessage(MSG_PART_COMPLETED, measurement);
+        }
 
-        final File[] files = dir.listFiles();
-        if (files == null) return 0;
+        private void submit(DirectoryTask task) {
+            try {
+                sMeasureExecutor.execute(task);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Could not queue measurement of " + task.mPath, e);
+                task.mDone.sendToTarget();
+            }
+        }
 
-        // Get sizes of all top level nodes except the ones already computed
-        long counter = 0;
-        long miscSize = 0;
+        private void partCompleted(Measurement measurement) {
+            if (--measurement.remaining > 0) {
+                if (!measurement.superseded && !hasMessages(MSG_PARTIAL_UPDATE)) {
+                    sendMessageDelayed(obtainMessage(MSG_PARTIAL_UPDATE, measurement),
+                            PARTIAL_UPDATE_INTERVAL);
+                }
+                return;
+            }
 
-        for (File file : files) {
-            final String path = file.getAbsolutePath();
-            final String name = file.getName();
-            if (sMeasureMediaTypes.contains(name)) {
-                continue;
+            removeMessages(MSG_PARTIAL_UPDATE);
+            mCurrent = null;
+            if (mReceiver == null) {
+                // Cleaned up while this was running.
+                releaseIndex();
             }
+            measurement.index.save();
+            if (LOGV) Log.v(TAG, "Measurement completed, " + measurement.index);
 
-            if (file.isFile()) {
-                final long fileSize = file.length();
-                mFileInfoForMisc.add(new FileInfo(path, fileSize, counter++));
-                miscSize += fileSize;
-            } else if (file.isDirectory()) {
-                final long dirSize = getDirectorySize(imcs, file);
-                mFileInfoForMisc.add(new FileInfo(path, dirSize, counter++));
-                miscSize += dirSize;
-            } else {
-                // Non directory, non file: not listed
+            if (measurement.superseded) {
+                if (mMeasureAgain) {
+                    mMeasureAgain = false;
+                    sendEmptyMessage(MSG_MEASURE);
+                }
+                return;
             }
+
+            // Left unsorted; MiscFilesModel orders only what is shown.
+            mFileInfoForMisc = measurement.miscFiles;
+            mCached = measurement.details;
+            sendExactUpdate(mCached);
         }
 
-        // sort the list of FileInfo objects collected above in descending order of their sizes
-        Collections.sort(mFileInfoForMisc);
+        /**
+         * Size the top level files of the given directory right away, and
+         * queue its top level directories to be measured.
+         */
+        private void measureMisc(IMediaContainerService imcs, File dir,
+                final Measurement measurement) {
+            final File[] files = dir.listFiles();
+            if (files == null) return;
+
+            // Get sizes of all top level nodes except the ones already computed
+            long counter = 0;
+            final MeasurementDetails details = measurement.details;
+
+            for (File file : files) {
+                final String path = file.getAbsolutePath();
+                final String name = file.getName();
+                if (sMeasureMediaTypes.contains(name)) {
+                    continue;
+                }
+
+                if (file.isFile()) {
+                    final long fileSize = file.length();
+                    synchronized (details) {
+                        measurement.miscFiles.add(new FileInfo(path, fileSize, counter++));
+                        details.miscSize += fileSize;
+                    }
+                } else if (file.isDirectory()) {
+                    final long id = counter++;
+                    submit(new DirectoryTask(imcs, file, measurement,
+                            obtainPartCompleted(measurement)) {
+                        @Override
+                        void addSizeLocked(long size) {
+                            measurement.miscFiles.add(new FileInfo(path, size, id));
+                            details.miscSize += size;
+                        }
+                    });
+                } else {
+                    // Non directory, non file: not listed
+                }
+            }
+        }
+    }
 
-        return miscSize;
+    private static long getDirectorySize(IMediaContainerService imcs, File path) {
+        try {
+            final long size = imcs.calculateDirectorySize(path.toString());
+            Log.d(TAG, "getDirectorySize(" + path + ") returned " + size);
+            return size;
+        } catch (Exception e) {
+            Log.w(TAG, "Could not read memory from default container service for " + path, e);
+            return 0;
+        }
     }
 
     static class FileInfo implements Comparable<FileInfo> {
@@ -78,6 +78,7 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory {
     private String mUsbFunction;
 
     private long mTotalSize;
+    private boolean mPartialDetails;
 
     private static final int MSG_UI_UPDATE_APPROXIMATE = 1;
     private static final int MSG_UI_UPDATE_DETAILS = 2;
@@ -310,7 +311,10 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory {
     private static long totalValues(HashMap<String, Long> map, String... keys) {
         long total = 0;
         for (String key : keys) {
-            total += map.get(key);
+            final Long value = map.get(key);
+            if (value != null) {
+                total += value;
+            }
         }
         return total;
     }
@@ -318,6 +322,7 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory {
     public void updateDetails(MeasurementDetails details) {
         final boolean showDetails = mVolume == null || mVolume.isPrimary();
         if (!showDetails) return;
+        mPartialDetails = details.partial;
 
         // Count caches as available space, since system manages them
         mItemTotal.setSummary(formatSize(details.totalSize));
@@ -355,7 +360,8 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory {
             pref.setSummary(formatSize(size));
             final int order = pref.getOrder();
             mUsageBarPreference.addEntry(order, size / (float) mTotalSize, pref.color);
-        } else {
+        } else if (!mPartialDetails) {
+            // Partial details may not have measured this item yet
             removePreference(pref);
         }
     }
@@ -19,10 +19,12 @@ package com.android.settings.fuelgauge;
 import android.app.Fragment;
 import android.os.Bundle;
 import android.os.Parcel;
+import android.os.ServiceManager;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
+import com.android.internal.app.IBatteryStats;
 import com.android.internal.os.BatteryStatsImpl;
 import com.android.settings.R;
 
@@ -30,16 +32,33 @@ public class BatteryHistoryDetail extends Fragment {
     public static final String EXTRA_STATS = "stats";
 
     private BatteryStatsImpl mStats;
+    private boolean mHolding;
 
     @Override
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
-        byte[] data = getArguments().getByteArray(EXTRA_STATS);
-        Parcel parcel = Parcel.obtain();
-        parcel.unmarshall(data, 0, data.length);
-        parcel.setDataPosition(0);
-        mStats = com.android.internal.os.BatteryStatsImpl.CREATOR
-                .createFromParcel(parcel);
+        byte[] data = getArguments() != null
+                ? getArguments().getByteArray(EXTRA_STATS) : null;
+        if (data != null) {
+            Parcel parcel = Parcel.obtain();
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            mStats = com.android.internal.os.BatteryStatsImpl.CREATOR
+                    .createFromParcel(parcel);
+        } else {
+            mStats = BatteryStatsHolder.acquire(IBatteryStats.Stub.asInterface(
+                    ServiceManager.getService("batteryinfo")), false);
+            mHolding = true;
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mHolding) {
+            BatteryStatsHolder.release(mStats);
+            mHolding = false;
+        }
     }
     
     @Override
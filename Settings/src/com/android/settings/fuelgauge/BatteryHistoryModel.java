@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats;
+import android.os.BatteryStats.HistoryItem;
+
+import java.util.WeakHashMap;
+
+/**
+ * The parts of the {@link BatteryStats} history that {@link BatteryHistoryChart}
+ * draws, decoded in a single pass into parallel arrays.  Models are cached
+ * per stats object, so binding the same stats again doesn't walk the history.
+ */
+class BatteryHistoryModel {
+    private static final WeakHashMap<BatteryStats, BatteryHistoryModel> sCache
+            = new WeakHashMap<BatteryStats, BatteryHistoryModel>();
+
+    /** Number of records, up to and including the last update. */
+    final int mCount;
+    /** Time of each record, milliseconds since boot. */
+    final long[] mTimes;
+    final byte[] mLevels;
+    /** {@link HistoryItem#states} of each update record. */
+    final int[] mStates;
+    /** Whether each record is a break in the history rather than an update. */
+    final boolean[] mBreaks;
+
+    final long mHistStart;
+    final long mHistEnd;
+    /** All states seen in any update record. */
+    final int mAggrStates;
+
+    private BatteryHistoryModel(int count, long[] times, byte[] levels, int[] states,
+            boolean[] breaks, long histStart, long histEnd, int aggrStates) {
+        mCount = count;
+        mTimes = times;
+        mLevels = levels;
+        mStates = states;
+        mBreaks = breaks;
+        mHistStart = histStart;
+        mHistEnd = histEnd;
+        mAggrStates = aggrStates;
+    }
+
+    static BatteryHistoryModel get(BatteryStats stats) {
+        synchronized (sCache) {
+            BatteryHistoryModel model = sCache.get(stats);
+            if (model == null) {
+                model = decode(stats);
+                sCache.put(stats, model);
+            }
+            return model;
+        }
+    }
+
+    private static BatteryHistoryModel decode(BatteryStats stats) {
+        int count = 0;
+        int lastInteresting = 0;
+        long[] times = new long[256];
+        byte[] levels = new byte[256];
+        int[] states = new int[256];
+        boolean[] breaks = new boolean[256];
+        long histStart = 0;
+        long histEnd = 0;
+        int aggrStates = 0;
+        boolean first = true;
+
+        if (stats.startIteratingHistoryLocked()) {
+            final HistoryItem rec = new HistoryItem();
+            while (stats.getNextHistoryLocked(rec)) {
+                final boolean update = rec.cmd == HistoryItem.CMD_UPDATE;
+                if (!update && rec.cmd == HistoryItem.CMD_OVERFLOW) {
+                    // doesn't interrupt the lines being drawn
+                    continue;
+                }
+                if (count == times.length) {
+                    final int newLength = count * 2;
+                    times = grow(times, newLength);
+                    levels = grow(levels, newLength);
+                    states = grow(states, newLength);
+                    breaks = grow(breaks, newLength);
+                }
+                times[count] = rec.time;
+                levels[count] = rec.batteryLevel;
+                states[count] = rec.states;
+                breaks[count] = !update;
+                count++;
+
+                if (update) {
+                    if (first) {
+                        first = false;
+                        histStart = rec.time;
+                    }
+                    lastInteresting = count;
+                    histEnd = rec.time;
+                    aggrStates |= rec.states;
+                }
+            }
+        }
+
+        // drop anything after the last update, and trim to size
+        count = lastInteresting;
+        return new BatteryHistoryModel(count, grow(times, count), grow(levels, count),
+                grow(states, count), grow(breaks, count), histStart, histEnd, aggrStates);
+    }
+
+    private static long[] grow(long[] array, int length) {
+        final long[] result = new long[length];
+        System.arraycopy(array, 0, result, 0, Math.min(length, array.length));
+        return result;
+    }
+
+    private static byte[] grow(byte[] array, int length) {
+        final byte[] result = new byte[length];
+        System.arraycopy(array, 0, result, 0, Math.min(length, array.length));
+        return result;
+    }
+
+    private static int[] grow(int[] array, int length) {
+        final int[] result = new int[length];
+        System.arraycopy(array, 0, result, 0, Math.min(length, array.length));
+        return result;
+    }
+
+    private static boolean[] grow(boolean[] array, int length) {
+        final boolean[] result = new boolean[length];
+        System.arraycopy(array, 0, result, 0, Math.min(length, array.length));
+        return result;
+    }
+}
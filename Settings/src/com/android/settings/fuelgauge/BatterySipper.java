@@ -19,20 +19,15 @@ import com.android.settings.R;
 import com.android.settings.fuelgauge.PowerUsageDetail.DrainType;
 
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
 import android.os.BatteryStats.Uid;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 
 class BatterySipper implements Comparable<BatterySipper> {
     final Context mContext;
-    final HashMap<String,UidToDetail> mUidCache = new HashMap<String,UidToDetail>();
     final ArrayList<BatterySipper> mRequestQueue;
     final Handler mHandler;
     String name;
@@ -54,6 +49,7 @@ class BatterySipper implements Comparable<BatterySipper> {
     double noCoveragePercent;
     String defaultPackageName;
 
+    /** Name and icon of a uid, as resolved by {@link UidNameIconLoader}. */
     static class UidToDetail {
         String name;
         String packageName;
@@ -98,12 +94,9 @@ class BatterySipper implements Comparable<BatterySipper> {
 
     void getQuickNameIconForUid(Uid uidObj) {
         final int uid = uidObj.getUid();
-        final String uidString = Integer.toString(uid);
-        if (mUidCache.containsKey(uidString)) {
-            UidToDetail utd = mUidCache.get(uidString);
-            defaultPackageName = utd.packageName;
-            name = utd.name;
-            icon = utd.icon;
+        final UidToDetail utd = UidNameIconLoader.getInstance(mContext).peek(uid);
+        if (utd != null) {
+            applyDetail(utd);
             return;
         }
         PackageManager pm = mContext.getPackageManager();
@@ -128,72 +121,15 @@ class BatterySipper implements Comparable<BatterySipper> {
     }
 
     /**
-     * Sets name and icon
-     * @param uid Uid of the application
+     * Sets name and icon from the resolved details of this sipper's uid.
      */
-    void getNameIcon() {
-        PackageManager pm = mContext.getPackageManager();
-        final int uid = uidObj.getUid();
-        final Drawable defaultActivityIcon = pm.getDefaultActivityIcon();
-        String[] packages = pm.getPackagesForUid(uid);
-        if (packages == null) {
-            name = Integer.toString(uid);
-            return;
-        }
-
-        String[] packageLabels = new String[packages.length];
-        System.arraycopy(packages, 0, packageLabels, 0, packages.length);
-
-        int preferredIndex = -1;
-        // Convert package names to user-facing labels where possible
-        for (int i = 0; i < packageLabels.length; i++) {
-            // Check if package matches preferred package
-            if (packageLabels[i].equals(name)) preferredIndex = i;
-            try {
-                ApplicationInfo ai = pm.getApplicationInfo(packageLabels[i], 0);
-                CharSequence label = ai.loadLabel(pm);
-                if (label != null) {
-                    packageLabels[i] = label.toString();
-                }
-                if (ai.icon != 0) {
-                    defaultPackageName = packages[i];
-                    icon = ai.loadIcon(pm);
-                    break;
-                }
-            } catch (NameNotFoundException e) {
-            }
-        }
-        if (icon == null) icon = defaultActivityIcon;
-
-        if (packageLabels.length == 1) {
-            name = packageLabels[0];
-        } else {
-            // Look for an official name for this UID.
-            for (String pkgName : packages) {
-                try {
-                    final PackageInfo pi = pm.getPackageInfo(pkgName, 0);
-                    if (pi.sharedUserLabel != 0) {
-                        final CharSequence nm = pm.getText(pkgName,
-                                pi.sharedUserLabel, pi.applicationInfo);
-                        if (nm != null) {
-                            name = nm.toString();
-                            if (pi.applicationInfo.icon != 0) {
-                                defaultPackageName = pkgName;
-                                icon = pi.applicationInfo.loadIcon(pm);
-                            }
-                            break;
-                        }
-                    }
-                } catch (PackageManager.NameNotFoundException e) {
-                }
-            }
+    void applyDetail(UidToDetail utd) {
+        if (utd.name != null) {
+            name = utd.name;
         }
-        final String uidString = Integer.toString(uidObj.getUid());
-        UidToDetail utd = new UidToDetail();
-        utd.name = name;
-        utd.icon = icon;
-        utd.packageName = defaultPackageName;
-        mUidCache.put(uidString, utd);
-        mHandler.sendMessage(mHandler.obtainMessage(PowerUsageSummary.MSG_UPDATE_NAME_ICON, this));
+        defaultPackageName = utd.packageName;
+        // The cached drawable may be shown by other sippers too.
+        final Drawable.ConstantState state = utd.icon.getConstantState();
+        icon = state != null ? state.newDrawable(mContext.getResources()) : utd.icon;
     }
 }
\ No newline at end of file
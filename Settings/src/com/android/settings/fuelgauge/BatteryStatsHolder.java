@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.app.IBatteryStats;
+import com.android.internal.os.BatteryStatsImpl;
+
+/**
+ * Process-wide snapshot of the battery stats, shared by the battery screens
+ * so that going from the summary to its details doesn't decode the stats
+ * again.  While any screen holds the snapshot it is handed out as is; once
+ * released by all of them it is only reused within {@link #FRESHNESS_MS},
+ * e.g. when the summary is recreated for a configuration change.
+ */
+class BatteryStatsHolder {
+    private static final String TAG = "BatteryStatsHolder";
+    private static final boolean DEBUG = false;
+
+    static final long FRESHNESS_MS = 10 * 1000;
+
+    private static BatteryStatsImpl sStats;
+    private static long sLoadTime;
+    private static long sReleaseTime;
+    private static int sRefCount;
+
+    /**
+     * Return the current snapshot, loading a new one from the service if
+     * there is none, if it has gone stale, or if {@code refresh} is set.
+     * Each call must be balanced by a call to {@link #release}.
+     */
+    static synchronized BatteryStatsImpl acquire(IBatteryStats service, boolean refresh) {
+        final long now = SystemClock.elapsedRealtime();
+        if (sStats != null && !refresh
+                && (sRefCount > 0 || now - sReleaseTime < FRESHNESS_MS)) {
+            sRefCount++;
+            if (DEBUG) Log.d(TAG, "Reusing stats from " + (now - sLoadTime) + "ms ago, refs="
+                    + sRefCount);
+            return sStats;
+        }
+
+        final BatteryStatsImpl stats = load(service);
+        if (stats == null) {
+            return null;
+        }
+        // Screens still holding the previous snapshot keep using it, and
+        // releasing it later does nothing.
+        sStats = stats;
+        sLoadTime = now;
+        sRefCount = 1;
+        if (DEBUG) Log.d(TAG, "Loaded stats in " + (SystemClock.elapsedRealtime() - now) + "ms");
+        return stats;
+    }
+
+    static synchronized void release(BatteryStatsImpl stats) {
+        if (stats == null || stats != sStats) {
+            return;
+        }
+        if (--sRefCount <= 0) {
+            sRefCount = 0;
+            sReleaseTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private static BatteryStatsImpl load(IBatteryStats service) {
+        try {
+            byte[] data = service.getStatistics();
+            Parcel parcel = Parcel.obtain();
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            BatteryStatsImpl stats = com.android.internal.os.BatteryStatsImpl.CREATOR
+                    .createFromParcel(parcel);
+            parcel.recycle();
+            stats.distributeWorkLocked(BatteryStats.STATS_SINCE_CHARGED);
+            return stats;
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException:", e);
+            return null;
+        }
+    }
+}
@@ -22,16 +22,13 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.UserInfo;
 import android.graphics.drawable.Drawable;
-import android.hardware.SensorManager;
 import android.net.Uri;
 import android.os.BatteryStats;
 import android.os.BatteryStats.Uid;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.os.Parcel;
 import android.os.Process;
-import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemClock;
 import android.os.UserHandle;
@@ -63,13 +60,12 @@ import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Displays a list of apps and subsystems that consume power, ordered by how much power was
  * consumed since the last time it was unplugged.
  */
-public class PowerUsageSummary extends PreferenceFragment implements Runnable {
+public class PowerUsageSummary extends PreferenceFragment {
 
     private static final boolean DEBUG = false;
 
@@ -82,8 +78,6 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
     private static final int MENU_STATS_REFRESH = Menu.FIRST + 1;
     private static final int MENU_HELP = Menu.FIRST + 2;
 
-    private static BatteryStatsImpl sStatsXfer;
-
     IBatteryStats mBatteryInfo;
     UserManager mUm;
     BatteryStatsImpl mStats;
@@ -112,10 +106,8 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
     // How much the apps together have left WIFI running.
     private long mAppWifiRunning;
 
-    /** Queue for fetching name and icon for an application */
+    /** Sippers whose name and icon still need to be resolved */
     private ArrayList<BatterySipper> mRequestQueue = new ArrayList<BatterySipper>();
-    private Thread mRequestThread;
-    private boolean mAbort;
 
     private BroadcastReceiver mBatteryInfoReceiver = new BroadcastReceiver() {
 
@@ -137,10 +129,6 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
 
-        if (icicle != null) {
-            mStats = sStatsXfer;
-        }
-
         addPreferencesFromResource(R.xml.power_usage_summary);
         mBatteryInfo = IBatteryStats.Stub.asInterface(
                 ServiceManager.getService("batteryinfo"));
@@ -154,7 +142,6 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
     @Override
     public void onResume() {
         super.onResume();
-        mAbort = false;
         getActivity().registerReceiver(mBatteryInfoReceiver,
                 new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
         refreshStats();
@@ -162,9 +149,7 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
 
     @Override
     public void onPause() {
-        synchronized (mRequestQueue) {
-            mAbort = true;
-        }
+        UidNameIconLoader.getInstance(getActivity()).cancel(mHandler);
         mHandler.removeMessages(MSG_UPDATE_NAME_ICON);
         getActivity().unregisterReceiver(mBatteryInfoReceiver);
         super.onPause();
@@ -173,19 +158,15 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (getActivity().isChangingConfigurations()) {
-            sStatsXfer = mStats;
-        }
+        BatteryStatsHolder.release(mStats);
+        mStats = null;
     }
 
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
         if (preference instanceof BatteryHistoryPreference) {
-            Parcel hist = Parcel.obtain();
-            mStats.writeToParcelWithoutUids(hist, 0);
-            byte[] histData = hist.marshall();
+            // The detail picks up the same stats from BatteryStatsHolder.
             Bundle args = new Bundle();
-            args.putByteArray(BatteryHistoryDetail.EXTRA_STATS, histData);
             PreferenceActivity pa = (PreferenceActivity)getActivity();
             pa.startPreferencePanel(BatteryHistoryDetail.class.getName(), args,
                     R.string.history_details_title, null, null, 0);
@@ -356,7 +337,8 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
                 refreshStats();
                 return true;
             case MENU_STATS_REFRESH:
-                mStats = null;
+                BatteryStatsHolder.release(mStats);
+                mStats = BatteryStatsHolder.acquire(mBatteryInfo, true);
                 refreshStats();
                 return true;
             default:
@@ -386,6 +368,9 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
         mBluetoothSippers.clear();
         mUserSippers.clear();
         mUserPower.clear();
+        synchronized (mRequestQueue) {
+            mRequestQueue.clear();
+        }
         mAppListGroup.setOrderingAsAdded(false);
 
         mBatteryStatusPref.setOrder(-2);
@@ -402,6 +387,7 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
         processMiscUsage();
 
         Collections.sort(mUsageList);
+        final ArrayList<BatterySipper> shown = new ArrayList<BatterySipper>();
         for (BatterySipper sipper : mUsageList) {
             if (sipper.getSortValue() < MIN_POWER_THRESHOLD) continue;
             final double percentOfTotal =  ((sipper.getSortValue() / mTotalPower) * 100);
@@ -416,186 +402,63 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
                 pref.setKey(Integer.toString(sipper.uidObj.getUid()));
             }
             mAppListGroup.addPreference(pref);
+            shown.add(sipper);
             if (mAppListGroup.getPreferenceCount() > (MAX_ITEMS_TO_LIST+1)) break;
         }
+        requestNamesAndIcons(shown);
+    }
+
+    /**
+     * Hand the queued sippers to the loader, resolving the ones shown in the
+     * list first and in the order they're shown.
+     */
+    private void requestNamesAndIcons(ArrayList<BatterySipper> shown) {
+        final UidNameIconLoader loader = UidNameIconLoader.getInstance(getActivity());
         synchronized (mRequestQueue) {
-            if (!mRequestQueue.isEmpty()) {
-                if (mRequestThread == null) {
-                    mRequestThread = new Thread(this, "BatteryUsage Icon Loader");
-                    mRequestThread.setPriority(Thread.MIN_PRIORITY);
-                    mRequestThread.start();
-                }
-                mRequestQueue.notify();
+            for (BatterySipper sipper : mRequestQueue) {
+                final int position = shown.indexOf(sipper);
+                loader.request(sipper, position >= 0
+                        ? position : UidNameIconLoader.PRIORITY_HIDDEN);
             }
+            mRequestQueue.clear();
         }
     }
 
     private void processAppUsage() {
-        SensorManager sensorManager = (SensorManager)getActivity().getSystemService(
-                Context.SENSOR_SERVICE);
+        final long startTime = SystemClock.elapsedRealtime();
         final int which = mStatsType;
-        final int speedSteps = mPowerProfile.getNumSpeedSteps();
-        final double[] powerCpuNormal = new double[speedSteps];
-        final long[] cpuSpeedStepTimes = new long[speedSteps];
-        for (int p = 0; p < speedSteps; p++) {
-            powerCpuNormal[p] = mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_ACTIVE, p);
-        }
-        final double averageCostPerByte = getAverageDataCost();
         long uSecTime = mStats.computeBatteryRealtime(SystemClock.elapsedRealtime() * 1000, which);
         long appWakelockTime = 0;
         BatterySipper osApp = null;
         mStatsPeriod = uSecTime;
         SparseArray<? extends Uid> uidStats = mStats.getUidStats();
-        final int NU = uidStats.size();
-        for (int iu = 0; iu < NU; iu++) {
-            Uid u = uidStats.valueAt(iu);
-            double p;
-            double power = 0;
-            double highestDrain = 0;
-            String packageWithHighestDrain = null;
-            //mUsageList.add(new AppUsage(u.getUid(), new double[] {power}));
-            Map<String, ? extends BatteryStats.Uid.Proc> processStats = u.getProcessStats();
-            long cpuTime = 0;
-            long cpuFgTime = 0;
-            long wakelockTime = 0;
-            long gpsTime = 0;
-            if (DEBUG) Log.i(TAG, "UID " + u.getUid());
-            if (processStats.size() > 0) {
-                // Process CPU time
-                for (Map.Entry<String, ? extends BatteryStats.Uid.Proc> ent
-                        : processStats.entrySet()) {
-                    Uid.Proc ps = ent.getValue();
-                    final long userTime = ps.getUserTime(which);
-                    final long systemTime = ps.getSystemTime(which);
-                    final long foregroundTime = ps.getForegroundTime(which);
-                    cpuFgTime += foregroundTime * 10; // convert to millis
-                    final long tmpCpuTime = (userTime + systemTime) * 10; // convert to millis
-                    int totalTimeAtSpeeds = 0;
-                    // Get the total first
-                    for (int step = 0; step < speedSteps; step++) {
-                        cpuSpeedStepTimes[step] = ps.getTimeAtCpuSpeedStep(step, which);
-                        totalTimeAtSpeeds += cpuSpeedStepTimes[step];
-                    }
-                    if (totalTimeAtSpeeds == 0) totalTimeAtSpeeds = 1;
-                    // Then compute the ratio of time spent at each speed
-                    double processPower = 0;
-                    for (int step = 0; step < speedSteps; step++) {
-                        double ratio = (double) cpuSpeedStepTimes[step] / totalTimeAtSpeeds;
-                        processPower += ratio * tmpCpuTime * powerCpuNormal[step];
-                    }
-                    cpuTime += tmpCpuTime;
-                    if (DEBUG && processPower != 0) {
-                        Log.i(TAG, String.format("process %s, cpu power=%.2f",
-                                ent.getKey(), processPower / 1000));
-                    }
-                    power += processPower;
-                    if (packageWithHighestDrain == null
-                            || packageWithHighestDrain.startsWith("*")) {
-                        highestDrain = processPower;
-                        packageWithHighestDrain = ent.getKey();
-                    } else if (highestDrain < processPower
-                            && !ent.getKey().startsWith("*")) {
-                        highestDrain = processPower;
-                        packageWithHighestDrain = ent.getKey();
-                    }
-                }
-            }
-            if (cpuFgTime > cpuTime) {
-                if (DEBUG && cpuFgTime > cpuTime + 10000) {
-                    Log.i(TAG, "WARNING! Cputime is more than 10 seconds behind Foreground time");
-                }
-                cpuTime = cpuFgTime; // Statistics may not have been gathered yet.
-            }
-            power /= 1000;
-            if (DEBUG && power != 0) Log.i(TAG, String.format("total cpu power=%.2f", power));
-
-            // Process wake lock usage
-            Map<String, ? extends BatteryStats.Uid.Wakelock> wakelockStats = u.getWakelockStats();
-            for (Map.Entry<String, ? extends BatteryStats.Uid.Wakelock> wakelockEntry
-                    : wakelockStats.entrySet()) {
-                Uid.Wakelock wakelock = wakelockEntry.getValue();
-                // Only care about partial wake locks since full wake locks
-                // are canceled when the user turns the screen off.
-                BatteryStats.Timer timer = wakelock.getWakeTime(BatteryStats.WAKE_TYPE_PARTIAL);
-                if (timer != null) {
-                    wakelockTime += timer.getTotalTimeLocked(uSecTime, which);
-                }
-            }
-            wakelockTime /= 1000; // convert to millis
-            appWakelockTime += wakelockTime;
-
-            // Add cost of holding a wake lock
-            p = (wakelockTime
-                    * mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_AWAKE)) / 1000;
-            power += p;
-            if (DEBUG && p != 0) Log.i(TAG, String.format("wakelock power=%.2f", p));
-            
-            // Add cost of data traffic
-            long tcpBytesReceived = u.getTcpBytesReceived(mStatsType);
-            long tcpBytesSent = u.getTcpBytesSent(mStatsType);
-            p = (tcpBytesReceived+tcpBytesSent) * averageCostPerByte;
-            power += p;
-            if (DEBUG && p != 0) Log.i(TAG, String.format("tcp power=%.2f", p));
-
-            // Add cost of keeping WIFI running.
-            long wifiRunningTimeMs = u.getWifiRunningTime(uSecTime, which) / 1000;
-            mAppWifiRunning += wifiRunningTimeMs;
-            p = (wifiRunningTimeMs
-                    * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_ON)) / 1000;
-            power += p;
-            if (DEBUG && p != 0) Log.i(TAG, String.format("wifi running power=%.2f", p));
-
-            // Add cost of WIFI scans
-            long wifiScanTimeMs = u.getWifiScanTime(uSecTime, which) / 1000;
-            p = (wifiScanTimeMs
-                    * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_SCAN)) / 1000;
-            power += p;
-            if (DEBUG && p != 0) Log.i(TAG, String.format("wifi scanning power=%.2f", p));
-
-            // Process Sensor usage
-            Map<Integer, ? extends BatteryStats.Uid.Sensor> sensorStats = u.getSensorStats();
-            for (Map.Entry<Integer, ? extends BatteryStats.Uid.Sensor> sensorEntry
-                    : sensorStats.entrySet()) {
-                Uid.Sensor sensor = sensorEntry.getValue();
-                int sensorType = sensor.getHandle();
-                BatteryStats.Timer timer = sensor.getSensorTime();
-                long sensorTime = timer.getTotalTimeLocked(uSecTime, which) / 1000;
-                double multiplier = 0;
-                switch (sensorType) {
-                    case Uid.Sensor.GPS:
-                        multiplier = mPowerProfile.getAveragePower(PowerProfile.POWER_GPS_ON);
-                        gpsTime = sensorTime;
-                        break;
-                    default:
-                        android.hardware.Sensor sensorData =
-                                sensorManager.getDefaultSensor(sensorType);
-                        if (sensorData != null) {
-                            multiplier = sensorData.getPower();
-                        }
-                }
-                p = (multiplier * sensorTime) / 1000;
-                power += p;
-                if (DEBUG && p != 0) {
-                    Log.i(TAG, String.format("sensor %s power=%.2f", sensor.toString(), p));
-                }
-            }
+        final UidPowerCalculator calculator = new UidPowerCalculator(getActivity(),
+                mPowerProfile, which, uSecTime, getAverageDataCost());
+        final UidPowerCalculator.UidPower[] results = calculator.computeAll(uidStats);
+        final long computeTime = SystemClock.elapsedRealtime() - startTime;
 
-            if (DEBUG) Log.i(TAG, String.format("UID %d total power=%.2f", u.getUid(), power));
+        final int NU = results.length;
+        for (int iu = 0; iu < NU; iu++) {
+            final UidPowerCalculator.UidPower result = results[iu];
+            final Uid u = result.uid;
+            final double power = result.power;
+            appWakelockTime += result.wakelockTime;
+            mAppWifiRunning += result.wifiRunningTime;
 
             // Add the app to the list if it is consuming power
             boolean isOtherUser = false;
             final int userId = UserHandle.getUserId(u.getUid());
             if (power != 0 || u.getUid() == 0) {
                 BatterySipper app = new BatterySipper(getActivity(), mRequestQueue, mHandler,
-                        packageWithHighestDrain, DrainType.APP, 0, u,
+                        result.packageWithHighestDrain, DrainType.APP, 0, u,
                         new double[] {power});
-                app.cpuTime = cpuTime;
-                app.gpsTime = gpsTime;
-                app.wifiRunningTime = wifiRunningTimeMs;
-                app.cpuFgTime = cpuFgTime;
-                app.wakeLockTime = wakelockTime;
-                app.tcpBytesReceived = tcpBytesReceived;
-                app.tcpBytesSent = tcpBytesSent;
+                app.cpuTime = result.cpuTime;
+                app.gpsTime = result.gpsTime;
+                app.wifiRunningTime = result.wifiRunningTime;
+                app.cpuFgTime = result.cpuFgTime;
+                app.wakeLockTime = result.wakelockTime;
+                app.tcpBytesReceived = result.tcpBytesReceived;
+                app.tcpBytesSent = result.tcpBytesSent;
                 if (u.getUid() == Process.WIFI_UID) {
                     mWifiSippers.add(app);
                 } else if (u.getUid() == Process.BLUETOOTH_GID) {
@@ -655,6 +518,11 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
                 mTotalPower += power;
             }
         }
+
+        if (DEBUG || Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Computed power of " + NU + " uids in " + computeTime + "ms, "
+                    + (SystemClock.elapsedRealtime() - startTime) + "ms total");
+        }
     }
 
     private void addPhoneUsage(long uSecNow) {
@@ -846,31 +714,7 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
     }
 
     private void load() {
-        try {
-            byte[] data = mBatteryInfo.getStatistics();
-            Parcel parcel = Parcel.obtain();
-            parcel.unmarshall(data, 0, data.length);
-            parcel.setDataPosition(0);
-            mStats = com.android.internal.os.BatteryStatsImpl.CREATOR
-                    .createFromParcel(parcel);
-            mStats.distributeWorkLocked(BatteryStats.STATS_SINCE_CHARGED);
-        } catch (RemoteException e) {
-            Log.e(TAG, "RemoteException:", e);
-        }
-    }
-
-    public void run() {
-        while (true) {
-            BatterySipper bs;
-            synchronized (mRequestQueue) {
-                if (mRequestQueue.isEmpty() || mAbort) {
-                    mRequestThread = null;
-                    return;
-                }
-                bs = mRequestQueue.remove(0);
-            }
-            bs.getNameIcon();
-        }
+        mStats = BatteryStatsHolder.acquire(mBatteryInfo, false);
     }
 
     static final int MSG_UPDATE_NAME_ICON = 1;
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.SparseArray;
+
+import com.android.settings.IconCache;
+import com.android.settings.fuelgauge.BatterySipper.UidToDetail;
+
+import java.util.ArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves the names and icons of the UIDs shown by the battery screens.
+ * Requests for the same UID are batched into one lookup, lookups run on a
+ * small pool of worker threads in priority order, and results are kept in a
+ * process-wide cache that is invalidated when packages change.
+ */
+class UidNameIconLoader {
+    private static final String TAG = "UidNameIconLoader";
+    private static final boolean DEBUG = false;
+
+    private static final int MAX_CACHED_UIDS = 128;
+    private static final int NUM_WORKERS = 2;
+
+    /** Priority of sippers that aren't shown in the list. */
+    static final int PRIORITY_HIDDEN = Integer.MAX_VALUE;
+
+    private static UidNameIconLoader sInstance;
+
+    private final Context mContext;
+    private final PackageManager mPm;
+    private final LruCache<Integer, UidToDetail> mCache
+            = new LruCache<Integer, UidToDetail>(MAX_CACHED_UIDS);
+
+    /** Requests not yet picked up by a worker, by UID. */
+    private final SparseArray<Request> mPending = new SparseArray<Request>();
+    private final ThreadPoolExecutor mExecutor;
+    private int mNextSequence;
+
+    static UidNameIconLoader getInstance(Context context) {
+        synchronized (UidNameIconLoader.class) {
+            if (sInstance == null) {
+                sInstance = new UidNameIconLoader(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private UidNameIconLoader(Context context) {
+        mContext = context;
+        mPm = context.getPackageManager();
+        mExecutor = new ThreadPoolExecutor(NUM_WORKERS, NUM_WORKERS, 10, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r,
+                        "BatteryUsage Icon Loader #" + mCount.getAndIncrement());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        final PackageIntentReceiver receiver = new PackageIntentReceiver();
+        IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiver(receiver, filter);
+        IntentFilter otherFilter = new IntentFilter();
+        otherFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        otherFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        otherFilter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        context.registerReceiver(receiver, otherFilter);
+    }
+
+    /**
+     * Drops cached names and icons when the packages behind them change.
+     */
+    private class PackageIntentReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            if (uid >= 0) {
+                if (DEBUG) Log.d(TAG, intent.getAction() + ", dropping uid " + uid);
+                mCache.remove(uid);
+            } else {
+                // Labels of many packages may have changed.
+                if (DEBUG) Log.d(TAG, intent.getAction() + ", dropping all");
+                mCache.evictAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the cached name and icon of the given UID, or null if it hasn't
+     * been resolved yet.
+     */
+    UidToDetail peek(int uid) {
+        return mCache.get(uid);
+    }
+
+    /**
+     * Resolve the name and icon of the sipper's UID and post
+     * {@link PowerUsageSummary#MSG_UPDATE_NAME_ICON} to its handler when
+     * done.  Lower priorities are resolved first.
+     */
+    void request(BatterySipper sipper, int priority) {
+        final int uid = sipper.uidObj.getUid();
+        final UidToDetail cached = mCache.get(uid);
+        if (cached != null) {
+            sipper.applyDetail(cached);
+            sipper.mHandler.sendMessage(sipper.mHandler.obtainMessage(
+                    PowerUsageSummary.MSG_UPDATE_NAME_ICON, sipper));
+            return;
+        }
+
+        synchronized (mPending) {
+            Request request = mPending.get(uid);
+            if (request == null) {
+                request = new Request(uid, priority, mNextSequence++);
+                request.mSippers.add(sipper);
+                mPending.put(uid, request);
+                mExecutor.execute(request);
+            } else {
+                request.mSippers.add(sipper);
+                if (priority < request.mPriority && mExecutor.remove(request)) {
+                    // Requeue at its new priority.
+                    request.mPriority = priority;
+                    mExecutor.execute(request);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget the pending requests of all sippers posting to the given
+     * handler, e.g. because their screen was paused.
+     */
+    void cancel(Handler handler) {
+        synchronized (mPending) {
+            for (int i = mPending.size() - 1; i >= 0; i--) {
+                final Request request = mPending.valueAt(i);
+                final ArrayList<BatterySipper> sippers = request.mSippers;
+                for (int j = sippers.size() - 1; j >= 0; j--) {
+                    if (sippers.get(j).mHandler == handler) {
+                        sippers.remove(j);
+                    }
+                }
+                if (sippers.isEmpty()) {
+                    mExecutor.remove(request);
+                    mPending.removeAt(i);
+                }
+            }
+        }
+    }
+
+    private class Request implements Runnable, Comparable<Request> {
+        final int mUid;
+        final int mSequence;
+        int mPriority;
+        final ArrayList<BatterySipper> mSippers = new ArrayList<BatterySipper>();
+
+        Request(int uid, int priority, int sequence) {
+            mUid = uid;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        public int compareTo(Request other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence - other.mSequence;
+        }
+
+        public void run() {
+            final ArrayList<BatterySipper> sippers;
+            synchronized (mPending) {
+                if (mPending.get(mUid) != this) {
+                    return;
+                }
+                mPending.remove(mUid);
+                sippers = new ArrayList<BatterySipper>(mSippers);
+            }
+            if (sippers.isEmpty()) {
+                return;
+            }
+
+            final long startTime = DEBUG ? SystemClock.uptimeMillis() : 0;
+            final UidToDetail detail = resolve(mUid);
+            if (DEBUG) {
+                Log.d(TAG, "Resolved uid " + mUid + " for " + sippers.size() + " sippers in "
+                        + (SystemClock.uptimeMillis() - startTime) + "ms");
+            }
+            if (detail == null) {
+                // No packages; show the raw uid, as there's nothing better.
+                final String name = Integer.toString(mUid);
+                for (int i = 0; i < sippers.size(); i++) {
+                    sippers.get(i).name = name;
+                }
+                return;
+            }
+
+            mCache.put(mUid, detail);
+            for (int i = 0; i < sippers.size(); i++) {
+                final BatterySipper sipper = sippers.get(i);
+                sipper.applyDetail(detail);
+                sipper.mHandler.sendMessage(sipper.mHandler.obtainMessage(
+                        PowerUsageSummary.MSG_UPDATE_NAME_ICON, sipper));
+            }
+        }
+    }
+
+    /**
+     * Look up the user-facing name and icon of the packages of the given UID.
+     * The name is left null when the UID shares several packages but none of
+     * them names it, in which case the sipper keeps its own label.
+     */
+    private UidToDetail resolve(int uid) {
+        final PackageManager pm = mPm;
+        final IconCache iconCache = IconCache.getInstance(mContext);
+        final String[] packages = pm.getPackagesForUid(uid);
+        if (packages == null) {
+            return null;
+        }
+
+        final UidToDetail utd = new UidToDetail();
+        String[] packageLabels = new String[packages.length];
+        System.arraycopy(packages, 0, packageLabels, 0, packages.length);
+
+        // Convert package names to user-facing labels where possible
+        for (int i = 0; i < packageLabels.length; i++) {
+            try {
+                ApplicationInfo ai = pm.getApplicationInfo(packageLabels[i], 0);
+                CharSequence label = ai.loadLabel(pm);
+                if (label != null) {
+                    packageLabels[i] = label.toString();
+                }
+                if (ai.icon != 0) {
+                    utd.packageName = packages[i];
+                    utd.icon = iconCache.getApplicationIcon(ai);
+                    break;
+                }
+            } catch (NameNotFoundException e) {
+            }
+        }
+        if (utd.icon == null) utd.icon = pm.getDefaultActivityIcon();
+
+        if (packageLabels.length == 1) {
+            utd.name = packageLabels[0];
+        } else {
+            // Look for an official name for this UID.
+            for (String pkgName : packages) {
+                try {
+                    final PackageInfo pi = pm.getPackageInfo(pkgName, 0);
+                    if (pi.sharedUserLabel != 0) {
+                        final CharSequence nm = pm.getText(pkgName,
+                                pi.sharedUserLabel, pi.applicationInfo);
+                        if (nm != null) {
+                            utd.name = nm.toString();
+                            if (pi.applicationInfo.icon != 0) {
+                                utd.packageName = pkgName;
+                                utd.icon = iconCache.getApplicationIcon(pi.applicationInfo);
+                            }
+                            break;
+                        }
+                    }
+                } catch (PackageManager.NameNotFoundException e) {
+                }
+            }
+        }
+        return utd;
+    }
+
+    @Override
+    public String toString() {
+        return "UidNameIconLoader{cached=" + mCache.size() + " hits=" + mCache.hitCount()
+                + " misses=" + mCache.missCount() + " pending=" + mPending.size() + "}";
+    }
+}
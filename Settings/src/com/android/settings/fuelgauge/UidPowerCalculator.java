@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.os.BatteryStats;
+import android.os.BatteryStats.Uid;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.os.PowerProfile;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes the power used by each UID of a {@link BatteryStats} snapshot.
+ * UIDs are independent of each other, so for large snapshots they are split
+ * into chunks that are computed on a small pool of worker threads.
+ */
+class UidPowerCalculator {
+    private static final String TAG = "UidPowerCalculator";
+    private static final boolean DEBUG = false;
+
+    /** Below this many UIDs, handing work to the pool costs more than it saves. */
+    private static final int MIN_PARALLEL_UIDS = 32;
+    private static final int CHUNKS_PER_WORKER = 4;
+
+    private static final int NUM_WORKERS = Math.max(1,
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            NUM_WORKERS, NUM_WORKERS, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Power used by one UID, and the times it was derived from.
+     */
+    static class UidPower {
+        Uid uid;
+        double power;
+        String packageWithHighestDrain;
+        long cpuTime;
+        long cpuFgTime;
+        long wakelockTime;
+        long gpsTime;
+        long wifiRunningTime;
+        long tcpBytesReceived;
+        long tcpBytesSent;
+    }
+
+    private final SensorManager mSensorManager;
+    private final int mWhich;
+    private final long mUSecTime;
+    private final double mAverageCostPerByte;
+
+    private final int mSpeedSteps;
+    private final double[] mPowerCpuNormal;
+    private final double mPowerCpuAwake;
+    private final double mPowerWifiOn;
+    private final double mPowerWifiScan;
+    private final double mPowerGpsOn;
+
+    UidPowerCalculator(Context context, PowerProfile profile, int which, long uSecTime,
+            double averageCostPerByte) {
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        mWhich = which;
+        mUSecTime = uSecTime;
+        mAverageCostPerByte = averageCostPerByte;
+
+        mSpeedSteps = profile.getNumSpeedSteps();
+        mPowerCpuNormal = new double[mSpeedSteps];
+        for (int p = 0; p < mSpeedSteps; p++) {
+            mPowerCpuNormal[p] = profile.getAveragePower(PowerProfile.POWER_CPU_ACTIVE, p);
+        }
+        mPowerCpuAwake = profile.getAveragePower(PowerProfile.POWER_CPU_AWAKE);
+        mPowerWifiOn = profile.getAveragePower(PowerProfile.POWER_WIFI_ON);
+        mPowerWifiScan = profile.getAveragePower(PowerProfile.POWER_WIFI_SCAN);
+        mPowerGpsOn = profile.getAveragePower(PowerProfile.POWER_GPS_ON);
+    }
+
+    /**
+     * Compute the power of every UID in the given stats, returned in the same
+     * order as the stats.
+     */
+    UidPower[] computeAll(final SparseArray<? extends Uid> uidStats) {
+        final int NU = uidStats.size();
+        final UidPower[] results = new UidPower[NU];
+        if (NU < MIN_PARALLEL_UIDS || NUM_WORKERS == 1) {
+            computeRange(uidStats, results, 0, NU);
+            return results;
+        }
+
+        final int chunkSize = Math.max(1, (NU + NUM_WORKERS * CHUNKS_PER_WORKER - 1)
+                / (NUM_WORKERS * CHUNKS_PER_WORKER));
+        final ArrayList<Future<Void>> pending = new ArrayList<Future<Void>>();
+        for (int start = 0; start < NU; start += chunkSize) {
+            final int from = start;
+            final int to = Math.min(NU, start + chunkSize);
+            pending.add(sExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    computeRange(uidStats, results, from, to);
+                    return null;
+                }
+            }));
+        }
+
+        for (int i = 0; i < pending.size(); i++) {
+            try {
+                pending.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        // Anything not done by the workers, e.g. when interrupted.
+        for (int iu = 0; iu < NU; iu++) {
+            if (results[iu] == null) {
+                results[iu] = compute(uidStats.valueAt(iu));
+            }
+        }
+        return results;
+    }
+
+    private void computeRange(SparseArray<? extends Uid> uidStats, UidPower[] results,
+            int from, int to) {
+        for (int iu = from; iu < to; iu++) {
+            results[iu] = compute(uidStats.valueAt(iu));
+        }
+    }
+
+    private UidPower compute(Uid u) {
+        final int which = mWhich;
+        final long uSecTime = mUSecTime;
+        final UidPower result = new UidPower();
+        result.uid = u;
+        double p;
+        double power = 0;
+        double highestDrain = 0;
+        String packageWithHighestDrain = null;
+        long cpuTime = 0;
+        long cpuFgTime = 0;
+        long wakelockTime = 0;
+        long gpsTime = 0;
+        if (DEBUG) Log.i(TAG, "UID " + u.getUid());
+
+        // Process CPU time
+        Map<String, ? extends BatteryStats.Uid.Proc> processStats = u.getProcessStats();
+        if (processStats.size() > 0) {
+            for (Map.Entry<String, ? extends BatteryStats.Uid.Proc> ent
+                    : processStats.entrySet()) {
+                Uid.Proc ps = ent.getValue();
+                final long userTime = ps.getUserTime(which);
+                final long systemTime = ps.getSystemTime(which);
+                final long foregroundTime = ps.getForegroundTime(which);
+                cpuFgTime += foregroundTime * 10; // convert to millis
+                final long tmpCpuTime = (userTime + systemTime) * 10; // convert to millis
+                // Weight the power of each speed by the time spent at it
+                int totalTimeAtSpeeds = 0;
+                double weightedPower = 0;
+                for (int step = 0; step < mSpeedSteps; step++) {
+                    final long timeAtStep = ps.getTimeAtCpuSpeedStep(step, which);
+                    totalTimeAtSpeeds += timeAtStep;
+                    weightedPower += timeAtStep * mPowerCpuNormal[step];
+                }
+                if (totalTimeAtSpeeds == 0) totalTimeAtSpeeds = 1;
+                final double processPower = weightedPower / totalTimeAtSpeeds * tmpCpuTime;
+                cpuTime += tmpCpuTime;
+                if (DEBUG && processPower != 0) {
+                    Log.i(TAG, String.format("process %s, cpu power=%.2f",
+                            ent.getKey(), processPower / 1000));
+                }
+                power += processPower;
+                if (packageWithHighestDrain == null
+                        || packageWithHighestDrain.startsWith("*")) {
+                    highestDrain = processPower;
+                    packageWithHighestDrain = ent.getKey();
+                } else if (highestDrain < processPower
+                        && !ent.getKey().startsWith("*")) {
+                    highestDrain = processPower;
+                    packageWithHighestDrain = ent.getKey();
+                }
+            }
+        }
+        if (cpuFgTime > cpuTime) {
+            if (DEBUG && cpuFgTime > cpuTime + 10000) {
+                Log.i(TAG, "WARNING! Cputime is more than 10 seconds behind Foreground time");
+            }
+            cpuTime = cpuFgTime; // Statistics may not have been gathered yet.
+        }
+        power /= 1000;
+        if (DEBUG && power != 0) Log.i(TAG, String.format("total cpu power=%.2f", power));
+
+        // Process wake lock usage
+        Map<String, ? extends BatteryStats.Uid.Wakelock> wakelockStats = u.getWakelockStats();
+        for (Map.Entry<String, ? extends BatteryStats.Uid.Wakelock> wakelockEntry
+                : wakelockStats.entrySet()) {
+            Uid.Wakelock wakelock = wakelockEntry.getValue();
+            // Only care about partial wake locks since full wake locks
+            // are canceled when the user turns the screen off.
+            BatteryStats.Timer timer = wakelock.getWakeTime(BatteryStats.WAKE_TYPE_PARTIAL);
+            if (timer != null) {
+                wakelockTime += timer.getTotalTimeLocked(uSecTime, which);
+            }
+        }
+        wakelockTime /= 1000; // convert to millis
+
+        // Add cost of holding a wake lock
+        p = (wakelockTime * mPowerCpuAwake) / 1000;
+        power += p;
+        if (DEBUG && p != 0) Log.i(TAG, String.format("wakelock power=%.2f", p));
+
+        // Add cost of data traffic
+        long tcpBytesReceived = u.getTcpBytesReceived(which);
+        long tcpBytesSent = u.getTcpBytesSent(which);
+        p = (tcpBytesReceived+tcpBytesSent) * mAverageCostPerByte;
+        power += p;
+        if (DEBUG && p != 0) Log.i(TAG, String.format("tcp power=%.2f", p));
+
+        // Add cost of keeping WIFI running.
+        long wifiRunningTimeMs = u.getWifiRunningTime(uSecTime, which) / 1000;
+        p = (wifiRunningTimeMs * mPowerWifiOn) / 1000;
+        power += p;
+        if (DEBUG && p != 0) Log.i(TAG, String.format("wifi running power=%.2f", p));
+
+        // Add cost of WIFI scans
+        long wifiScanTimeMs = u.getWifiScanTime(uSecTime, which) / 1000;
+        p = (wifiScanTimeMs * mPowerWifiScan) / 1000;
+        power += p;
+        if (DEBUG && p != 0) Log.i(TAG, String.format("wifi scanning power=%.2f", p));
+
+        // Process Sensor usage
+        Map<Integer, ? extends BatteryStats.Uid.Sensor> sensorStats = u.getSensorStats();
+        for (Map.Entry<Integer, ? extends BatteryStats.Uid.Sensor> sensorEntry
+                : sensorStats.entrySet()) {
+            Uid.Sensor sensor = sensorEntry.getValue();
+            int sensorType = sensor.getHandle();
+            BatteryStats.Timer timer = sensor.getSensorTime();
+            long sensorTime = timer.getTotalTimeLocked(uSecTime, which) / 1000;
+            double multiplier = 0;
+            switch (sensorType) {
+                case Uid.Sensor.GPS:
+                    multiplier = mPowerGpsOn;
+                    gpsTime = sensorTime;
+                    break;
+                default:
+                    Sensor sensorData = mSensorManager.getDefaultSensor(sensorType);
+                    if (sensorData != null) {
+                        multiplier = sensorData.getPower();
+                    }
+            }
+            p = (multiplier * sensorTime) / 1000;
+            power += p;
+            if (DEBUG && p != 0) {
+                Log.i(TAG, String.format("sensor %s power=%.2f", sensor.toString(), p));
+            }
+        }
+
+        if (DEBUG) Log.i(TAG, String.format("UID %d total power=%.2f", u.getUid(), power));
+
+        result.power = power;
+        result.packageWithHighestDrain = packageWithHighestDrain;
+        result.cpuTime = cpuTime;
+        result.cpuFgTime = cpuFgTime;
+        result.wakelockTime = wakelockTime;
+        result.gpsTime = gpsTime;
+        result.wifiRunningTime = wifiRunningTimeMs;
+        result.tcpBytesReceived = tcpBytesReceived;
+        result.tcpBytesSent = tcpBytesSent;
+        return result;
+    }
+}
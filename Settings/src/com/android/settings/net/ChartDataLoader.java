@@ -18,7 +18,6 @@ package com.android.settings.net;
 
 import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.SET_FOREGROUND;
-import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStatsHistory.FIELD_RX_BYTES;
 import static android.net.NetworkStatsHistory.FIELD_TX_BYTES;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
@@ -29,19 +28,46 @@ import android.net.INetworkStatsSession;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
+import android.os.OperationCanceledException;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
 
 import com.android.settings.DataUsageSummary.AppItem;
 
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Loader for historical chart data for both network and UID details.
  */
 public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
+    private static final String TAG = "ChartDataLoader";
+    private static final boolean LOGD = false;
+
     private static final String KEY_TEMPLATE = "template";
     private static final String KEY_APP = "app";
     private static final String KEY_FIELDS = "fields";
 
+    /**
+     * Workers used to read the histories of apps made of several UIDs, such
+     * as "Android OS" or a whole user, in parallel.
+     */
+    private static final int MAX_WORKERS = 3;
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            MAX_WORKERS, MAX_WORKERS, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
     private final INetworkStatsSession mSession;
+    private final NetworkStatsHistoryCache mCache;
     private final Bundle mArgs;
 
     public static Bundle buildArgs(NetworkTemplate template, AppItem app) {
@@ -57,8 +83,14 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     }
 
     public ChartDataLoader(Context context, INetworkStatsSession session, Bundle args) {
+        this(context, session, new NetworkStatsHistoryCache(), args);
+    }
+
+    public ChartDataLoader(Context context, INetworkStatsSession session,
+            NetworkStatsHistoryCache cache, Bundle args) {
         super(context);
         mSession = session;
+        mCache = cache;
         mArgs = args;
     }
 
@@ -85,24 +117,35 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
 
     private ChartData loadInBackground(NetworkTemplate template, AppItem app, int fields)
             throws RemoteException {
-        final ChartData data = new ChartData();
-        data.network = mSession.getHistoryForNetwork(template, fields);
-
-        if (app != null) {
-            // load stats for current uid and template
-            final int size = app.uids.size();
+        final long startTime = SystemClock.elapsedRealtime();
+        final int size = app != null ? app.uids.size() : 0;
+
+        // start reading multiple UIDs right away, so they overlap with the
+        // network history below
+        ArrayList<Future<NetworkStatsHistory>> pending = null;
+        if (size > 1) {
+            pending = new ArrayList<Future<NetworkStatsHistory>>(size * 2);
             for (int i = 0; i < size; i++) {
                 final int uid = app.uids.keyAt(i);
-                data.detailDefault = collectHistoryForUid(
-                        template, uid, SET_DEFAULT, data.detailDefault);
-                data.detailForeground = collectHistoryForUid(
-                        template, uid, SET_FOREGROUND, data.detailForeground);
+                pending.add(sExecutor.submit(new UidHistoryRequest(template, uid, SET_DEFAULT)));
+                pending.add(sExecutor.submit(new UidHistoryRequest(template, uid, SET_FOREGROUND)));
             }
+        }
 
-            if (size > 0) {
+        final ChartData data = new ChartData();
+        data.network = mCache.getHistoryForNetwork(mSession, template, fields);
+
+        if (app != null) {
+            // load stats for current uid and template
+            if (size == 1) {
+                final int uid = app.uids.keyAt(0);
+                data.detailDefault = getHistoryForUid(template, uid, SET_DEFAULT);
+                data.detailForeground = getHistoryForUid(template, uid, SET_FOREGROUND);
                 data.detail = new NetworkStatsHistory(data.detailForeground.getBucketDuration());
                 data.detail.recordEntireHistory(data.detailDefault);
                 data.detail.recordEntireHistory(data.detailForeground);
+            } else if (size > 1) {
+                collectHistories(data, pending);
             } else {
                 data.detailDefault = new NetworkStatsHistory(HOUR_IN_MILLIS);
                 data.detailForeground = new NetworkStatsHistory(HOUR_IN_MILLIS);
@@ -110,9 +153,63 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
             }
         }
 
+        if (LOGD) {
+            Log.d(TAG, "loaded " + (app != null ? "app " + app.key : "network") + " with "
+                    + size + " uids in " + (SystemClock.elapsedRealtime() - startTime)
+                    + "ms; " + mCache);
+        }
         return data;
     }
 
+    /**
+     * Combine the per-UID histories read by the workers, alternating
+     * {@link android.net.NetworkStats#SET_DEFAULT} and
+     * {@link android.net.NetworkStats#SET_FOREGROUND}, into the detail
+     * histories of the given {@link ChartData}.  The combined detail is
+     * built from the two per-set totals rather than from every UID.  Throws
+     * {@link OperationCanceledException} if interrupted, which is how
+     * {@link AsyncTaskLoader} expects a cancelled load to end.
+     */
+    private void collectHistories(
+            ChartData data, ArrayList<Future<NetworkStatsHistory>> pending)
+            throws RemoteException {
+        final int count = pending.size();
+        for (int i = 0; i < count; i++) {
+            final NetworkStatsHistory history;
+            try {
+                history = pending.get(i).get();
+            } catch (InterruptedException e) {
+                for (int j = i; j < count; j++) {
+                    pending.get(j).cancel(false);
+                }
+                throw new OperationCanceledException();
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof RemoteException) {
+                    throw (RemoteException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+
+            if (data.detailDefault == null) {
+                final long bucketDuration = history.getBucketDuration();
+                data.detailDefault = new NetworkStatsHistory(bucketDuration);
+                data.detailForeground = new NetworkStatsHistory(bucketDuration);
+            }
+            if (i % 2 == 0) {
+                data.detailDefault.recordEntireHistory(history);
+            } else {
+                data.detailForeground.recordEntireHistory(history);
+            }
+        }
+
+        data.detail = new NetworkStatsHistory(data.detailForeground.getBucketDuration());
+        data.detail.recordEntireHistory(data.detailDefault);
+        data.detail.recordEntireHistory(data.detailForeground);
+    }
+
     @Override
     protected void onStopLoading() {
         super.onStopLoading();
@@ -125,21 +222,26 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         cancelLoad();
     }
 
-    /**
-     * Collect {@link NetworkStatsHistory} for the requested UID, combining with
-     * an existing {@link NetworkStatsHistory} if provided.
-     */
-    private NetworkStatsHistory collectHistoryForUid(
-            NetworkTemplate template, int uid, int set, NetworkStatsHistory existing)
+    private NetworkStatsHistory getHistoryForUid(NetworkTemplate template, int uid, int set)
             throws RemoteException {
-        final NetworkStatsHistory history = mSession.getHistoryForUid(
-                template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
-
-        if (existing != null) {
-            existing.recordEntireHistory(history);
-            return existing;
-        } else {
-            return history;
+        return mCache.getHistoryForUid(
+                mSession, template, uid, set, FIELD_RX_BYTES | FIELD_TX_BYTES);
+    }
+
+    private class UidHistoryRequest implements Callable<NetworkStatsHistory> {
+        private final NetworkTemplate mTemplate;
+        private final int mUid;
+        private final int mSet;
+
+        public UidHistoryRequest(NetworkTemplate template, int uid, int set) {
+            mTemplate = template;
+            mUid = uid;
+            mSet = set;
+        }
+
+        @Override
+        public NetworkStatsHistory call() throws RemoteException {
+            return getHistoryForUid(mTemplate, mUid, mSet);
         }
     }
 }
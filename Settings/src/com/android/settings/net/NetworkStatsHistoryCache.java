@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStats.TAG_NONE;
+
+import android.net.INetworkStatsSession;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.RemoteException;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.internal.util.Objects;
+
+/**
+ * Cache of {@link NetworkStatsHistory} read from an
+ * {@link INetworkStatsSession}, keyed by template, UID and set, so that
+ * switching between network tabs and cycles doesn't read the same history
+ * again.  Cached histories are shared and must not be modified by callers.
+ */
+public class NetworkStatsHistoryCache {
+    private static final String TAG = "NetworkStatsHistoryCache";
+    private static final boolean LOGD = false;
+
+    /** Pseudo UID used for the history of the network as a whole. */
+    private static final int UID_NETWORK = Integer.MIN_VALUE;
+
+    private static final int MAX_ENTRIES = 64;
+
+    private static class Key {
+        final NetworkTemplate template;
+        final int uid;
+        final int set;
+        final int fields;
+
+        Key(NetworkTemplate template, int uid, int set, int fields) {
+            this.template = template;
+            this.uid = uid;
+            this.set = set;
+            this.fields = fields;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(template, uid, set, fields);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key) {
+                final Key other = (Key) obj;
+                return uid == other.uid && set == other.set && fields == other.fields
+                        && Objects.equal(template, other.template);
+            }
+            return false;
+        }
+    }
+
+    private final LruCache<Key, NetworkStatsHistory> mCache;
+
+    /** Incremented by {@link #invalidate}, so that fetches it overtook aren't cached. */
+    private int mGeneration;
+    private int mHits;
+    private int mMisses;
+
+    public NetworkStatsHistoryCache() {
+        mCache = new LruCache<Key, NetworkStatsHistory>(MAX_ENTRIES);
+    }
+
+    /**
+     * Drop all cached histories, typically because the stats service has
+     * just recorded new data.
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+        mCache.evictAll();
+    }
+
+    public NetworkStatsHistory getHistoryForNetwork(
+            INetworkStatsSession session, NetworkTemplate template, int fields)
+            throws RemoteException {
+        final Key key = new Key(template, UID_NETWORK, 0, fields);
+        NetworkStatsHistory history = get(key);
+        if (history == null) {
+            final int generation = getGeneration();
+            history = session.getHistoryForNetwork(template, fields);
+            put(key, history, generation);
+        }
+        return history;
+    }
+
+    public NetworkStatsHistory getHistoryForUid(INetworkStatsSession session,
+            NetworkTemplate template, int uid, int set, int fields) throws RemoteException {
+        final Key key = new Key(template, uid, set, fields);
+        NetworkStatsHistory history = get(key);
+        if (history == null) {
+            final int generation = getGeneration();
+            history = session.getHistoryForUid(template, uid, set, TAG_NONE, fields);
+            put(key, history, generation);
+        }
+        return history;
+    }
+
+    private NetworkStatsHistory get(Key key) {
+        final NetworkStatsHistory history = mCache.get(key);
+        synchronized (this) {
+            if (history != null) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+            if (LOGD) Log.d(TAG, "uid=" + key.uid + " set=" + key.set
+                    + (history != null ? " hit" : " miss") + " " + this);
+        }
+        return history;
+    }
+
+    private synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches a history fetched when the cache was at the given generation,
+     * unless it was invalidated since, in which case the history may predate
+     * the data that caused it.
+     */
+    private synchronized void put(Key key, NetworkStatsHistory history, int generation) {
+        if (generation == mGeneration) {
+            mCache.put(key, history);
+        } else if (LOGD) {
+            Log.d(TAG, "uid=" + key.uid + " set=" + key.set + " invalidated during fetch");
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "NetworkStatsHistoryCache{entries=" + mCache.size() + " hits=" + mHits
+                + " misses=" + mMisses + "}";
+    }
+}
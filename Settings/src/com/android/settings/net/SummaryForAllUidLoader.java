@@ -16,19 +16,35 @@
 
 package com.android.settings.net;
 
+import static android.net.NetworkPolicyManager.POLICY_REJECT_METERED_BACKGROUND;
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+import android.app.ActivityManager;
 import android.content.AsyncTaskLoader;
 import android.content.Context;
 import android.net.INetworkStatsSession;
+import android.net.NetworkPolicyManager;
 import android.net.NetworkStats;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.UserHandle;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 
-public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
+/**
+ * Loader of network usage for all UIDs, collapsed into the rows shown by
+ * {@link com.android.settings.DataUsageSummary} and ordered by usage.
+ */
+public class SummaryForAllUidLoader extends AsyncTaskLoader<UidSummary> {
     private static final String KEY_TEMPLATE = "template";
     private static final String KEY_START = "start";
     private static final String KEY_END = "end";
 
+    /** Rows ordered in the background; enough to fill the first screen. */
+    private static final int SORTED_ROWS = 32;
+
     private final INetworkStatsSession mSession;
     private final Bundle mArgs;
 
@@ -53,16 +69,143 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
     }
 
     @Override
-    public NetworkStats loadInBackground() {
+    public UidSummary loadInBackground() {
         final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
         final long start = mArgs.getLong(KEY_START);
         final long end = mArgs.getLong(KEY_END);
 
+        final NetworkStats stats;
         try {
-            return mSession.getSummaryForAllUid(template, start, end, false);
+            stats = mSession.getSummaryForAllUid(template, start, end, false);
         } catch (RemoteException e) {
             return null;
         }
+
+        final int[] restrictedUids = NetworkPolicyManager.from(getContext())
+                .getUidsWithPolicy(POLICY_REJECT_METERED_BACKGROUND);
+        final UidSummary summary = buildSummary(stats, restrictedUids);
+        summary.sortTop(SORTED_ROWS);
+        return summary;
+    }
+
+    /**
+     * Collapse the given {@link NetworkStats} into one row per app of the
+     * current user, one per other user, and shared rows for system UIDs,
+     * splicing in rows for restricted UIDs of the current user.
+     */
+    static UidSummary buildSummary(NetworkStats stats, int[] restrictedUids) {
+        final int currentUserId = ActivityManager.getCurrentUser();
+
+        final int size = stats != null ? stats.size() : 0;
+        final SparseIntArray rowForKey = new SparseIntArray();
+        final SparseBooleanArray knownUids = new SparseBooleanArray();
+        int[] keys = new int[16];
+        long[] totals = new long[16];
+        int[] rowOfUid = new int[16];
+        int[] uids = new int[16];
+        int rows = 0;
+        int uidCount = 0;
+
+        NetworkStats.Entry entry = null;
+        for (int i = 0; i < size; i++) {
+            entry = stats.getValues(i, entry);
+
+            // Decide how to collapse items together
+            final int uid = entry.uid;
+            final int collapseKey;
+            if (UserHandle.isApp(uid)) {
+                if (UserHandle.getUserId(uid) == currentUserId) {
+                    collapseKey = uid;
+                } else {
+                    collapseKey = UidDetailProvider.buildKeyForUser(UserHandle.getUserId(uid));
+                }
+            } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
+                collapseKey = uid;
+            } else {
+                collapseKey = android.os.Process.SYSTEM_UID;
+            }
+
+            int row = rowForKey.get(collapseKey, -1);
+            if (row < 0) {
+                if (rows == keys.length) {
+                    keys = grow(keys);
+                    totals = grow(totals);
+                }
+                row = rows++;
+                keys[row] = collapseKey;
+                rowForKey.put(collapseKey, row);
+            }
+            if (!knownUids.get(uid)) {
+                knownUids.put(uid, true);
+                if (uidCount == uids.length) {
+                    uids = grow(uids);
+                    rowOfUid = grow(rowOfUid);
+                }
+                uids[uidCount] = uid;
+                rowOfUid[uidCount] = row;
+                uidCount++;
+            }
+            totals[row] += entry.rxBytes + entry.txBytes;
+        }
+
+        final int[] restrictedRows = new int[restrictedUids.length];
+        int restrictedCount = 0;
+        for (int uid : restrictedUids) {
+            // Only splice in restricted state for current user
+            if (UserHandle.getUserId(uid) != currentUserId) continue;
+
+            int row = rowForKey.get(uid, -1);
+            if (row < 0) {
+                if (rows == keys.length) {
+                    keys = grow(keys);
+                    totals = grow(totals);
+                }
+                row = rows++;
+                keys[row] = uid;
+                totals[row] = -1;
+                rowForKey.put(uid, row);
+            }
+            restrictedRows[restrictedCount++] = row;
+        }
+
+        final UidSummary summary = new UidSummary(rows);
+        System.arraycopy(keys, 0, summary.keys, 0, rows);
+        System.arraycopy(totals, 0, summary.totals, 0, rows);
+        for (int i = 0; i < restrictedCount; i++) {
+            summary.restricted[restrictedRows[i]] = true;
+        }
+        for (int row = 0; row < rows; row++) {
+            summary.largest = Math.max(summary.largest, summary.totals[row]);
+        }
+
+        // group UIDs by row
+        final int[] uidStart = summary.uidStart;
+        for (int i = 0; i < uidCount; i++) {
+            uidStart[rowOfUid[i] + 1]++;
+        }
+        for (int row = 0; row < rows; row++) {
+            uidStart[row + 1] += uidStart[row];
+        }
+        final int[] next = new int[rows];
+        System.arraycopy(uidStart, 0, next, 0, rows);
+        summary.uids = new int[uidCount];
+        for (int i = 0; i < uidCount; i++) {
+            summary.uids[next[rowOfUid[i]]++] = uids[i];
+        }
+
+        return summary;
+    }
+
+    private static int[] grow(int[] array) {
+        final int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private static long[] grow(long[] array) {
+        final long[] grown = new long[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
     }
 
     @Override
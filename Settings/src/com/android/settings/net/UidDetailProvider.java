@@ -30,6 +30,7 @@ import android.os.UserManager;
 import android.text.TextUtils;
 import android.util.SparseArray;
 
+import com.android.settings.IconCache;
 import com.android.settings.R;
 import com.android.settings.Utils;
 import com.android.settings.users.UserUtils;
@@ -89,6 +90,7 @@ public class UidDetailProvider {
     private UidDetail buildUidDetail(int uid) {
         final Resources res = mContext.getResources();
         final PackageManager pm = mContext.getPackageManager();
+        final IconCache iconCache = IconCache.getInstance(mContext);
 
         final UidDetail detail = new UidDetail();
         detail.label = pm.getNameForUid(uid);
@@ -133,7 +135,7 @@ public class UidDetailProvider {
             if (length == 1) {
                 final ApplicationInfo info = pm.getApplicationInfo(packageNames[0], 0);
                 detail.label = info.loadLabel(pm).toString();
-                detail.icon = info.loadIcon(pm);
+                detail.icon = iconCache.getApplicationIcon(info);
             } else if (length > 1) {
                 detail.detailLabels = new CharSequence[length];
                 for (int i = 0; i < length; i++) {
@@ -145,7 +147,7 @@ public class UidDetailProvider {
                     if (packageInfo.sharedUserLabel != 0) {
                         detail.label = pm.getText(packageName, packageInfo.sharedUserLabel,
                                 packageInfo.applicationInfo).toString();
-                        detail.icon = appInfo.loadIcon(pm);
+                        detail.icon = iconCache.getApplicationIcon(appInfo);
                     }
                 }
             }
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+/**
+ * Network usage collapsed into rows of applications, users or system
+ * buckets, as built by {@link SummaryForAllUidLoader}.  Rows are kept in
+ * parallel arrays and ordered by total usage descending; only the first rows
+ * are ordered up front, the rest are ordered the first time they're needed.
+ */
+public class UidSummary {
+    public static final UidSummary EMPTY = new UidSummary(0);
+
+    /** Number of rows. */
+    public final int size;
+
+    /** Collapse key of each row, as used by {@link AppItem#key}. */
+    final int[] keys;
+    /** Total bytes of each row, or -1 for rows that are only restricted. */
+    final long[] totals;
+    final boolean[] restricted;
+    /** UIDs of row {@code i} are {@code uids[uidStart[i]]} until {@code uidStart[i + 1]}. */
+    final int[] uidStart;
+    int[] uids;
+
+    /** Row indexes in display order; the first {@link #mSorted} are final. */
+    private final int[] mOrder;
+    private int mSorted;
+
+    private final AppItem[] mItems;
+
+    /** Largest total of any row. */
+    long largest;
+
+    UidSummary(int size) {
+        this.size = size;
+        keys = new int[size];
+        totals = new long[size];
+        restricted = new boolean[size];
+        uidStart = new int[size + 1];
+        uids = new int[0];
+        mOrder = new int[size];
+        for (int i = 0; i < size; i++) {
+            mOrder[i] = i;
+        }
+        mItems = new AppItem[size];
+    }
+
+    public long getLargest() {
+        return largest;
+    }
+
+    public int getKey(int position) {
+        return keys[ensureSorted(position)];
+    }
+
+    public long getTotal(int position) {
+        return totals[ensureSorted(position)];
+    }
+
+    public boolean isRestricted(int position) {
+        return restricted[ensureSorted(position)];
+    }
+
+    /**
+     * Return the {@link AppItem} shown at the given position, building it on
+     * first use.
+     */
+    public AppItem getItem(int position) {
+        final int row = ensureSorted(position);
+        AppItem item = mItems[row];
+        if (item == null) {
+            item = new AppItem(keys[row]);
+            item.total = totals[row];
+            item.restricted = restricted[row];
+            for (int i = uidStart[row]; i < uidStart[row + 1]; i++) {
+                item.addUid(uids[i]);
+            }
+            mItems[row] = item;
+        }
+        return item;
+    }
+
+    /**
+     * Order at least the first {@code count} rows, leaving the remaining
+     * rows for later.
+     */
+    void sortTop(int count) {
+        count = Math.min(count, size);
+        if (count > mSorted) {
+            partialSort(mSorted, count - mSorted);
+            mSorted = count;
+        }
+    }
+
+    private int ensureSorted(int position) {
+        if (position >= mSorted) {
+            // past the rows ordered by the loader; order everything else
+            sortTop(size);
+        }
+        return mOrder[position];
+    }
+
+    /**
+     * Move the {@code count} highest ranked rows of {@code mOrder[from..]} to
+     * its front in ranked order, using a heap of {@code count} rows so that
+     * the rest only needs to be compared against the lowest of them.
+     */
+    private void partialSort(int from, int count) {
+        final int[] order = mOrder;
+        // heap of lowest ranked row at order[from], among order[from..from+count)
+        for (int i = count / 2 - 1; i >= 0; i--) {
+            siftDown(from, i, count);
+        }
+        for (int i = from + count; i < size; i++) {
+            if (ranksBefore(order[i], order[from])) {
+                final int tmp = order[i];
+                order[i] = order[from];
+                order[from] = tmp;
+                siftDown(from, 0, count);
+            }
+        }
+        // repeatedly move lowest to the end, leaving highest ranked first
+        for (int end = count - 1; end > 0; end--) {
+            final int tmp = order[from + end];
+            order[from + end] = order[from];
+            order[from] = tmp;
+            siftDown(from, 0, end);
+        }
+    }
+
+    private void siftDown(int from, int i, int count) {
+        final int[] order = mOrder;
+        while (true) {
+            final int left = 2 * i + 1;
+            if (left >= count) break;
+            int lowest = left;
+            final int right = left + 1;
+            if (right < count && ranksBefore(order[from + lowest], order[from + right])) {
+                lowest = right;
+            }
+            if (!ranksBefore(order[from + i], order[from + lowest])) break;
+            final int tmp = order[from + i];
+            order[from + i] = order[from + lowest];
+            order[from + lowest] = tmp;
+            i = lowest;
+        }
+    }
+
+    /**
+     * Rows are ranked by total descending, and then in the order they were
+     * first seen.
+     */
+    private boolean ranksBefore(int a, int b) {
+        final long totalA = totals[a];
+        final long totalB = totals[b];
+        return totalA != totalB ? totalA > totalB : a < b;
+    }
+}
@@ -19,8 +19,12 @@ package com.android.settings.vpn2;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.DialogFragment;
+import android.app.Fragment;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.res.Resources;
 import android.net.ConnectivityManager;
 import android.net.IConnectivityManager;
@@ -28,6 +32,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.preference.Preference;
 import android.preference.PreferenceGroup;
@@ -66,6 +71,14 @@ public class VpnSettings extends SettingsPreferenceFragment implements
 
     private static final String TAG_LOCKDOWN = "lockdown";
 
+    // While a VPN is starting or stopping, its state is polled this often,
+    private static final int TRANSITION_POLL_INTERVAL_MS = 1000;
+    // and for at least this long after it was asked to connect or disconnect.
+    private static final int TRANSITION_TIMEOUT_MS = 10 * 1000;
+    // A connected VPN can fail without connectivity changing, so its state is
+    // still polled this often.
+    private static final int CONNECTED_POLL_INTERVAL_MS = 30 * 1000;
+
     // TODO: migrate to using DialogFragment when editing
 
     private final IConnectivityManager mService = IConnectivityManager.Stub
@@ -78,6 +91,25 @@ public class VpnSettings extends SettingsPreferenceFragment implements
 
     private Handler mUpdater;
     private LegacyVpnInfo mInfo;
+    /** Until when the state is polled even if it looks settled. */
+    private long mTransitionEndTime;
+    private boolean mReceiverRegistered;
+
+    /**
+     * Connectivity changes when a VPN comes up, and usually when it goes
+     * down or the network under it changes; the state is checked then, and
+     * polled quickly while it is changing and slowly while it is connected.
+     */
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // onResume() already checks the state.
+            if (isInitialStickyBroadcast()) return;
+            if (mUpdater != null) {
+                mUpdater.sendEmptyMessage(0);
+            }
+        }
+    };
 
     // The key of the profile for the current ContextMenu.
     private String mSelectedKey;
@@ -197,6 +229,11 @@ public class VpnSettings extends SettingsPreferenceFragment implements
             mUpdater = new Handler(this);
         }
         mUpdater.sendEmptyMessage(0);
+        if (!mReceiverRegistered) {
+            getActivity().registerReceiver(mReceiver,
+                    new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            mReceiverRegistered = true;
+        }
 
         // Register for context menu. Hmmm, getListView() is hidden?
         registerForContextMenu(getListView());
@@ -206,6 +243,15 @@ public class VpnSettings extends SettingsPreferenceFragment implements
     public void onPause() {
         super.onPause();
 
+        // Stop monitoring.
+        if (mReceiverRegistered) {
+            getActivity().unregisterReceiver(mReceiver);
+            mReceiverRegistered = false;
+        }
+        if (mUpdater != null) {
+            mUpdater.removeMessages(0);
+        }
+
         // Hide the dialog if there is one.
         if (mDialog != null) {
             mDialog.setOnDismissListener(null);
@@ -341,6 +387,7 @@ public class VpnSettings extends SettingsPreferenceFragment implements
         mUpdater.removeMessages(0);
 
         if (isResumed()) {
+            boolean changing = SystemClock.uptimeMillis() < mTransitionEndTime;
             try {
                 LegacyVpnInfo info = mService.getLegacyVpnInfo();
                 if (mInfo != null) {
@@ -356,18 +403,36 @@ public class VpnSettings extends SettingsPreferenceFragment implements
                         preference.update(info.state);
                         mInfo = info;
                     }
+                    changing |= info.state == LegacyVpnInfo.STATE_INITIALIZING
+                            || info.state == LegacyVpnInfo.STATE_CONNECTING;
                 }
             } catch (Exception e) {
                 // ignore
             }
-            mUpdater.sendEmptyMessageDelayed(0, 1000);
+            if (changing) {
+                mUpdater.sendEmptyMessageDelayed(0, TRANSITION_POLL_INTERVAL_MS);
+            } else if (mInfo != null && mInfo.state == LegacyVpnInfo.STATE_CONNECTED) {
+                mUpdater.sendEmptyMessageDelayed(0, CONNECTED_POLL_INTERVAL_MS);
+            }
         }
         return true;
     }
 
+    /**
+     * Polls the state for a while, as a VPN was just asked to connect or
+     * disconnect.
+     */
+    void onTransitionStarted() {
+        mTransitionEndTime = SystemClock.uptimeMillis() + TRANSITION_TIMEOUT_MS;
+        if (mUpdater != null) {
+            mUpdater.sendEmptyMessage(0);
+        }
+    }
+
     private void connect(VpnProfile profile) throws Exception {
         try {
             mService.startLegacyVpn(profile);
+            onTransitionStarted();
         } catch (IllegalStateException e) {
             Toast.makeText(getActivity(), R.string.vpn_no_network, Toast.LENGTH_LONG).show();
         }
@@ -377,6 +442,7 @@ public class VpnSettings extends SettingsPreferenceFragment implements
         if (mInfo != null && key.equals(mInfo.key)) {
             try {
                 mService.prepareVpn(VpnConfig.LEGACY_VPN, VpnConfig.LEGACY_VPN);
+                onTransitionStarted();
             } catch (Exception e) {
                 // ignore
             }
@@ -463,6 +529,7 @@ public class VpnSettings extends SettingsPreferenceFragment implements
             if (!parent.isAdded()) return;
 
             final LockdownConfigFragment dialog = new LockdownConfigFragment();
+            dialog.setTargetFragment(parent, 0);
             dialog.show(parent.getFragmentManager(), TAG_LOCKDOWN);
         }
 
@@ -527,6 +594,11 @@ public class VpnSettings extends SettingsPreferenceFragment implements
 
                     // kick profiles since we changed them
                     ConnectivityManager.from(getActivity()).updateLockdownVpn();
+
+                    final Fragment target = getTargetFragment();
+                    if (target instanceof VpnSettings) {
+                        ((VpnSettings) target).onTransitionStarted();
+                    }
                 }
             });
 
@@ -31,6 +31,8 @@ import android.hardware.display.WifiDisplayStatus;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceCategory;
@@ -38,6 +40,7 @@ import android.preference.PreferenceGroup;
 import android.preference.PreferenceScreen;
 import android.provider.Settings;
 import android.text.Html;
+import android.util.Log;
 import android.util.TypedValue;
 import android.view.Gravity;
 import android.view.Menu;
@@ -50,26 +53,56 @@ import android.widget.ImageView;
 import android.widget.Switch;
 import android.widget.TextView;
 
+import com.android.internal.util.Objects;
 import com.android.settings.ProgressCategory;
 import com.android.settings.R;
 import com.android.settings.SettingsPreferenceFragment;
 
+import java.util.Arrays;
+import java.util.HashMap;
+
 /**
  * The Settings screen for WifiDisplay configuration and connection management.
  */
 public final class WifiDisplaySettings extends SettingsPreferenceFragment {
     private static final String TAG = "WifiDisplaySettings";
+    private static final boolean DEBUG = false;
 
     private static final int MENU_ID_SCAN = Menu.FIRST;
 
+    private static final int MSG_APPLY_STATUS = 1;
+
+    // Status broadcasts closer together than this are shown once.
+    private static final int STATUS_COALESCE_DELAY_MS = 100;
+
+    // A requested scan that hasn't been reported as started after this is not waited for.
+    private static final int SCAN_START_TIMEOUT_MS = 2 * 1000;
+
     private DisplayManager mDisplayManager;
 
     private boolean mWifiDisplayOnSetting;
     private WifiDisplayStatus mWifiDisplayStatus;
+    /** The status shown by the last {@link #applyState}. */
+    private WifiDisplayStatus mAppliedStatus;
 
     private PreferenceGroup mPairedDevicesCategory;
     private ProgressCategory mAvailableDevicesCategory;
 
+    /** Preferences of the displays shown in each category, by device address. */
+    private final HashMap<String, WifiDisplayPreference> mPairedPrefs =
+            new HashMap<String, WifiDisplayPreference>();
+    private final HashMap<String, WifiDisplayPreference> mAvailablePrefs =
+            new HashMap<String, WifiDisplayPreference>();
+
+    /** When a scan was last requested, or 0 once a status broadcast came after it. */
+    private long mScanRequestTime;
+
+    private int mStatusBroadcastCount;
+    private int mCoalescedBroadcastCount;
+    private int mUnchangedStatusCount;
+    private int mScanCount;
+    private int mSkippedScanCount;
+
     private TextView mEmptyView;
 
     private Switch mActionBarSwitch;
@@ -133,9 +166,9 @@ public final class WifiDisplaySettings extends SettingsPreferenceFragment {
         getContentResolver().registerContentObserver(Settings.Secure.getUriFor(
                 Settings.Global.WIFI_DISPLAY_ON), false, mSettingsObserver);
 
-        mDisplayManager.scanWifiDisplays();
-
         update();
+
+        scanWifiDisplays();
     }
 
     @Override
@@ -146,6 +179,44 @@ public final class WifiDisplaySettings extends SettingsPreferenceFragment {
         context.unregisterReceiver(mReceiver);
 
         getContentResolver().unregisterContentObserver(mSettingsObserver);
+
+        mHandler.removeMessages(MSG_APPLY_STATUS);
+        if (DEBUG) {
+            Log.d(TAG, "broadcasts=" + mStatusBroadcastCount + " coalesced="
+                    + mCoalescedBroadcastCount + " unchanged=" + mUnchangedStatusCount
+                    + " scans=" + mScanCount + " skippedScans=" + mSkippedScanCount);
+        }
+    }
+
+    /**
+     * Starts a scan unless one is already running or has just been requested.
+     */
+    private void scanWifiDisplays() {
+        final long now = SystemClock.uptimeMillis();
+        if ((mScanRequestTime != 0 && now - mScanRequestTime < SCAN_START_TIMEOUT_MS)
+                || (mWifiDisplayStatus != null && mWifiDisplayStatus.getScanState()
+                        == WifiDisplayStatus.SCAN_STATE_SCANNING)) {
+            mSkippedScanCount++;
+            return;
+        }
+        mScanRequestTime = now;
+        mScanCount++;
+        mDisplayManager.scanWifiDisplays();
+    }
+
+    /** Number of status broadcasts that were shown together with a later one. */
+    int getCoalescedBroadcastCount() {
+        return mCoalescedBroadcastCount;
+    }
+
+    /** Number of status broadcasts that didn't change anything shown. */
+    int getUnchangedStatusCount() {
+        return mUnchangedStatusCount;
+    }
+
+    /** Number of scans not started because one was already running. */
+    int getSkippedScanCount() {
+        return mSkippedScanCount;
     }
 
     @Override
@@ -165,7 +236,7 @@ public final class WifiDisplaySettings extends SettingsPreferenceFragment {
         switch (item.getItemId()) {
             case MENU_ID_SCAN:
                 if (mWifiDisplayStatus.getFeatureState() == WifiDisplayStatus.FEATURE_STATE_ON) {
-                    mDisplayManager.scanWifiDisplays();
+                    scanWifiDisplays();
                 }
                 return true;
         }
@@ -198,12 +269,14 @@ public final class WifiDisplaySettings extends SettingsPreferenceFragment {
     }
 
     private void applyState() {
+        mHandler.removeMessages(MSG_APPLY_STATUS);
+        mAppliedStatus = mWifiDisplayStatus;
+
         final int featureState = mWifiDisplayStatus.getFeatureState();
         mActionBarSwitch.setEnabled(featureState != WifiDisplayStatus.FEATURE_STATE_DISABLED);
         mActionBarSwitch.setChecked(mWifiDisplayOnSetting);
 
         final PreferenceScreen preferenceScreen = getPreferenceScreen();
-        preferenceScreen.removeAll();
 
         if (featureState == WifiDisplayStatus.FEATURE_STATE_ON) {
             final WifiDisplay[] pairedDisplays = mWifiDisplayStatus.getRememberedDisplays();
@@ -212,38 +285,54 @@ public final class WifiDisplaySettings extends SettingsPreferenceFragment {
             if (mPairedDevicesCategory == null) {
                 mPairedDevicesCategory = new PreferenceCategory(getActivity());
                 mPairedDevicesCategory.setTitle(R.string.wifi_display_paired_devices);
-            } else {
-                mPairedDevicesCategory.removeAll();
+                mPairedDevicesCategory.setOrder(0);
             }
-            preferenceScreen.addPreference(mPairedDevicesCategory);
-
+            int order = 0;
+            final HashMap<String, WifiDisplayPreference> oldPaired =
+                    new HashMap<String, WifiDisplayPreference>(mPairedPrefs);
+            mPairedPrefs.clear();
             for (WifiDisplay d : pairedDisplays) {
-                mPairedDevicesCategory.addPreference(createWifiDisplayPreference(d, true));
-            }
-            if (mPairedDevicesCategory.getPreferenceCount() == 0) {
-                preferenceScreen.removePreference(mPairedDevicesCategory);
+                updateWifiDisplayPreference(mPairedDevicesCategory, oldPaired, mPairedPrefs,
+                        d, true, order++);
             }
+            removeAll(mPairedDevicesCategory, oldPaired);
+            setShown(preferenceScreen, mPairedDevicesCategory,
+                    mPairedDevicesCategory.getPreferenceCount() != 0);
 
             if (mAvailableDevicesCategory == null) {
                 mAvailableDevicesCategory = new ProgressCategory(getActivity(), null,
                         R.string.wifi_display_no_devices_found);
                 mAvailableDevicesCategory.setTitle(R.string.wifi_display_available_devices);
-            } else {
-                mAvailableDevicesCategory.removeAll();
+                mAvailableDevicesCategory.setOrder(1);
             }
-            preferenceScreen.addPreference(mAvailableDevicesCategory);
-
+            order = 0;
+            final HashMap<String, WifiDisplayPreference> oldAvailable =
+                    new HashMap<String, WifiDisplayPreference>(mAvailablePrefs);
+            mAvailablePrefs.clear();
             for (WifiDisplay d : availableDisplays) {
                 if (!contains(pairedDisplays, d.getDeviceAddress())) {
-                    mAvailableDevicesCategory.addPreference(createWifiDisplayPreference(d, false));
+                    updateWifiDisplayPreference(mAvailableDevicesCategory, oldAvailable,
+                            mAvailablePrefs, d, false, order++);
                 }
             }
+            removeAll(mAvailableDevicesCategory, oldAvailable);
+            setShown(preferenceScreen, mAvailableDevicesCategory, true);
+
             if (mWifiDisplayStatus.getScanState() == WifiDisplayStatus.SCAN_STATE_SCANNING) {
                 mAvailableDevicesCategory.setProgress(true);
             } else {
                 mAvailableDevicesCategory.setProgress(false);
             }
         } else {
+            preferenceScreen.removeAll();
+            if (mPairedDevicesCategory != null) {
+                mPairedDevicesCategory.removeAll();
+            }
+            if (mAvailableDevicesCategory != null) {
+                mAvailableDevicesCategory.removeAll();
+            }
+            mPairedPrefs.clear();
+            mAvailablePrefs.clear();
             mEmptyView.setText(featureState == WifiDisplayStatus.FEATURE_STATE_OFF ?
                     R.string.wifi_display_settings_empty_list_wifi_display_off :
                             R.string.wifi_display_settings_empty_list_wifi_display_disabled);
@@ -252,25 +341,76 @@ public final class WifiDisplaySettings extends SettingsPreferenceFragment {
         getActivity().invalidateOptionsMenu();
     }
 
-    private Preference createWifiDisplayPreference(final WifiDisplay d, boolean paired) {
-        WifiDisplayPreference p = new WifiDisplayPreference(getActivity(), d);
+    /**
+     * Shows the given display in the category, reusing its preference from
+     * {@code oldPrefs} if it was already shown there.
+     */
+    private void updateWifiDisplayPreference(PreferenceGroup category,
+            HashMap<String, WifiDisplayPreference> oldPrefs,
+            HashMap<String, WifiDisplayPreference> newPrefs, WifiDisplay d, boolean paired,
+            int order) {
+        WifiDisplayPreference p = oldPrefs.remove(d.getDeviceAddress());
+        if (p == null) {
+            p = new WifiDisplayPreference(getActivity(), d);
+            if (paired) {
+                p.setWidgetLayoutResource(R.layout.wifi_display_preference);
+            }
+            p.setOrder(order);
+            category.addPreference(p);
+        } else {
+            p.setDisplay(d);
+            p.setOrder(order);
+        }
+        p.setSummary(getSummary(d, paired));
+        newPrefs.put(d.getDeviceAddress(), p);
+    }
+
+    private static void removeAll(PreferenceGroup category,
+            HashMap<String, WifiDisplayPreference> prefs) {
+        for (WifiDisplayPreference p : prefs.values()) {
+            category.removePreference(p);
+        }
+    }
+
+    private static void setShown(PreferenceScreen screen, Preference preference, boolean shown) {
+        for (int i = screen.getPreferenceCount() - 1; i >= 0; i--) {
+            if (screen.getPreference(i) == preference) {
+                if (!shown) {
+                    screen.removePreference(preference);
+                }
+                return;
+            }
+        }
+        if (shown) {
+            screen.addPreference(preference);
+        }
+    }
+
+    private String getSummary(WifiDisplay d, boolean paired) {
         if (d.equals(mWifiDisplayStatus.getActiveDisplay())) {
             switch (mWifiDisplayStatus.getActiveDisplayState()) {
                 case WifiDisplayStatus.DISPLAY_STATE_CONNECTED:
-                    p.setSummary(R.string.wifi_display_status_connected);
-                    break;
+                    return getString(R.string.wifi_display_status_connected);
                 case WifiDisplayStatus.DISPLAY_STATE_CONNECTING:
-                    p.setSummary(R.string.wifi_display_status_connecting);
-                    break;
+                    return getString(R.string.wifi_display_status_connecting);
             }
         } else if (paired && contains(mWifiDisplayStatus.getAvailableDisplays(),
                 d.getDeviceAddress())) {
-            p.setSummary(R.string.wifi_display_status_available);
-        }
-        if (paired) {
-            p.setWidgetLayoutResource(R.layout.wifi_display_preference);
+            return getString(R.string.wifi_display_status_available);
         }
-        return p;
+        return null;
+    }
+
+    /**
+     * Whether the two statuses would be shown the same way.
+     */
+    private static boolean isSameStatus(WifiDisplayStatus a, WifiDisplayStatus b) {
+        return a.getFeatureState() == b.getFeatureState()
+                && a.getScanState() == b.getScanState()
+                && a.getActiveDisplayState() == b.getActiveDisplayState()
+                && Objects.equal(a.getActiveDisplay(), b.getActiveDisplay())
+                && Arrays.equals(a.getAvailableDisplays(), b.getAvailableDisplays())
+                && Arrays.equals(a.getRememberedDisplays(), b.getRememberedDisplays());
     }
 
     private void showDisconnectDialog(final WifiDisplay display) {
@@ -353,7 +493,29 @@ public final class WifiDisplaySettings extends SettingsPreferenceFragment {
                 WifiDisplayStatus status = (WifiDisplayStatus)intent.getParcelableExtra(
                         DisplayManager.EXTRA_WIFI_DISPLAY_STATUS);
                 mWifiDisplayStatus = status;
-                applyState();
+                mScanRequestTime = 0;
+                mStatusBroadcastCount++;
+                if (mHandler.hasMessages(MSG_APPLY_STATUS)) {
+                    mCoalescedBroadcastCount++;
+                } else {
+                    mHandler.sendEmptyMessageDelayed(MSG_APPLY_STATUS, STATUS_COALESCE_DELAY_MS);
+                }
+            }
+        }
+    };
+
+    private final Handler mHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_APPLY_STATUS:
+                    if (mAppliedStatus != null
+                            && isSameStatus(mAppliedStatus, mWifiDisplayStatus)) {
+                        mUnchangedStatusCount++;
+                        return;
+                    }
+                    applyState();
+                    break;
             }
         }
     };
@@ -367,11 +529,16 @@ public final class WifiDisplaySettings extends SettingsPreferenceFragment {
 
     private final class WifiDisplayPreference extends Preference
             implements View.OnClickListener {
-        private final WifiDisplay mDisplay;
+        private WifiDisplay mDisplay;
 
         public WifiDisplayPreference(Context context, WifiDisplay display) {
             super(context);
 
+            setDisplay(display);
+        }
+
+        /** Shows the latest state of the same device. */
+        public void setDisplay(WifiDisplay display) {
             mDisplay = display;
             setTitle(display.getFriendlyDisplayName());
         }
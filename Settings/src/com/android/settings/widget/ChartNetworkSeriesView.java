@@ -75,6 +75,31 @@ public class ChartNetworkSeriesView extends View {
     private long mMax;
     private long mMaxEstimate;
 
+    /**
+     * Series decimated to at most two points per pixel column, stored as
+     * horizontal point and cumulative total so that it survives changes to
+     * the vertical axis.
+     */
+    private float[] mPointX = new float[0];
+    private long[] mPointTotal = new long[0];
+    private int mPointCount;
+    private long mPointLastTime;
+    private long mPointMax;
+
+    /** Inputs that {@link #mPointX} was decimated for. */
+    private NetworkStatsHistory mPointStats;
+    private long mPointStart;
+    private long mPointEnd;
+    private int mPointWidth;
+    private float mPointStartX;
+    private float mPointEndX;
+
+    /** Inputs that {@link #mPathStroke} was built for. */
+    private float mPathBottomY;
+    private float mPathTopY;
+    private int mPathHeight;
+    private long mPathEndTime;
+
     public ChartNetworkSeriesView(Context context) {
         this(context, null, 0);
     }
@@ -136,6 +161,7 @@ public class ChartNetworkSeriesView extends View {
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
         mStats = stats;
+        mPointStats = null;
         invalidatePath();
         invalidate();
     }
@@ -163,76 +189,64 @@ public class ChartNetworkSeriesView extends View {
 
     /**
      * Erase any existing {@link Path} and generate series outline based on
-     * currently bound {@link NetworkStatsHistory} data.
+     * currently bound {@link NetworkStatsHistory} data.  Buckets are first
+     * decimated to pixel columns, and both stages are skipped when their
+     * inputs haven't changed since the last time.
      */
     private void generatePath() {
-        if (LOGD) Log.d(TAG, "generatePath()");
-
-        mMax = 0;
-        mPathStroke.reset();
-        mPathFill.reset();
-        mPathEstimate.reset();
         mPathValid = true;
 
         // bail when not enough stats to render
         if (mStats == null || mStats.size() < 2) {
+            mMax = 0;
+            mPathStroke.reset();
+            mPathFill.reset();
+            mPathEstimate.reset();
+            mPointStats = null;
             return;
         }
 
         final int width = getWidth();
         final int height = getHeight();
 
-        boolean started = false;
+        final boolean decimated = decimateIfNeeded(width);
+
+        final float bottomY = mVert.convertToPoint(0);
+        final float topY = mVert.convertToPoint(mPointMax);
+        if (!decimated && mPathBottomY == bottomY && mPathTopY == topY
+                && mPathHeight == height && mPathEndTime == mEndTime) {
+            // same points mapped through same axis; existing path is valid
+            mMax = mPointMax;
+            return;
+        }
+        mPathBottomY = bottomY;
+        mPathTopY = topY;
+        mPathHeight = height;
+        mPathEndTime = mEndTime;
+
+        if (LOGD) Log.d(TAG, "generatePath() from " + mPointCount + " points");
+
+        mPathStroke.reset();
+        mPathFill.reset();
+        mPathEstimate.reset();
+
         float lastX = 0;
         float lastY = height;
-        long lastTime = mHoriz.convertToValue(lastX);
+        long lastTime = mPointLastTime;
 
         // move into starting position
         mPathStroke.moveTo(lastX, lastY);
         mPathFill.moveTo(lastX, lastY);
 
-        // TODO: count fractional data from first bucket crossing start;
-        // currently it only accepts first full bucket.
-
-        long totalData = 0;
-
-        NetworkStatsHistory.Entry entry = null;
-
-        final int start = mStats.getIndexBefore(mStart);
-        final int end = mStats.getIndexAfter(mEnd);
-        for (int i = start; i <= end; i++) {
-            entry = mStats.getValues(i, entry);
-
-            final long startTime = entry.bucketStart;
-            final long endTime = startTime + entry.bucketDuration;
-
-            final float startX = mHoriz.convertToPoint(startTime);
-            final float endX = mHoriz.convertToPoint(endTime);
-
-            // skip until we find first stats on screen
-            if (endX < 0) continue;
-
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
-
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
-
-            if (lastTime != startTime) {
-                // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
-            }
-
-            // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
-
-            lastX = endX;
-            lastY = endY;
-            lastTime = endTime;
+        for (int i = 0; i < mPointCount; i++) {
+            lastX = mPointX[i];
+            lastY = mVert.convertToPoint(mPointTotal[i]);
+            mPathStroke.lineTo(lastX, lastY);
+            mPathFill.lineTo(lastX, lastY);
         }
 
+        long totalData = mPointMax;
+
         // when data falls short, extend to requested end time
         if (lastTime < mEndTime) {
             lastX = mHoriz.convertToPoint(mEndTime);
@@ -254,6 +268,8 @@ public class ChartNetworkSeriesView extends View {
 
         mMax = totalData;
 
+        NetworkStatsHistory.Entry entry = null;
+
         if (ESTIMATE_ENABLED) {
             // build estimated data
             mPathEstimate.moveTo(lastX, lastY);
@@ -290,6 +306,99 @@ public class ChartNetworkSeriesView extends View {
         invalidate();
     }
 
+    /**
+     * Walk the buckets covering the current bounds and collect the outline
+     * points, keeping only the first and last point that fall into each
+     * pixel column.  Since the series is cumulative, those are also the
+     * minimum and maximum of the column.  Returns false when the existing
+     * points were still valid.
+     */
+    private boolean decimateIfNeeded(int width) {
+        final float startX = mHoriz.convertToPoint(mStart);
+        final float endX = mHoriz.convertToPoint(mEnd);
+        if (mPointStats == mStats && mPointStart == mStart && mPointEnd == mEnd
+                && mPointWidth == width && mPointStartX == startX && mPointEndX == endX) {
+            return false;
+        }
+        mPointStats = mStats;
+        mPointStart = mStart;
+        mPointEnd = mEnd;
+        mPointWidth = width;
+        mPointStartX = startX;
+        mPointEndX = endX;
+        mPointCount = 0;
+
+        long lastTime = mHoriz.convertToValue(0);
+
+        // TODO: count fractional data from first bucket crossing start;
+        // currently it only accepts first full bucket.
+
+        long totalData = 0;
+
+        NetworkStatsHistory.Entry entry = null;
+
+        final int start = mStats.getIndexBefore(mStart);
+        final int end = mStats.getIndexAfter(mEnd);
+        for (int i = start; i <= end; i++) {
+            entry = mStats.getValues(i, entry);
+
+            final long bucketStart = entry.bucketStart;
+            final long bucketEnd = bucketStart + entry.bucketDuration;
+
+            final float bucketStartX = mHoriz.convertToPoint(bucketStart);
+            final float bucketEndX = mHoriz.convertToPoint(bucketEnd);
+
+            // skip until we find first stats on screen
+            if (bucketEndX < 0) continue;
+
+            if (lastTime != bucketStart) {
+                // gap in buckets; line to start of current bucket
+                addPoint(bucketStartX, totalData);
+            }
+
+            // increment by current bucket total
+            totalData += entry.rxBytes + entry.txBytes;
+
+            // always draw to end of current bucket
+            addPoint(bucketEndX, totalData);
+
+            lastTime = bucketEnd;
+        }
+
+        mPointLastTime = lastTime;
+        mPointMax = totalData;
+
+        if (LOGD) {
+            Log.d(TAG, "decimated " + (end - start + 1) + " buckets into " + mPointCount
+                    + " points");
+        }
+        return true;
+    }
+
+    private void addPoint(float x, long total) {
+        final int count = mPointCount;
+        if (count >= 2 && (int) x == (int) mPointX[count - 1]
+                && (int) x == (int) mPointX[count - 2]) {
+            // third point in same column; extend the last one instead
+            mPointX[count - 1] = x;
+            mPointTotal[count - 1] = total;
+            return;
+        }
+
+        if (count == mPointX.length) {
+            final int newLength = Math.max(16, count * 2);
+            final float[] newX = new float[newLength];
+            final long[] newTotal = new long[newLength];
+            System.arraycopy(mPointX, 0, newX, 0, count);
+            System.arraycopy(mPointTotal, 0, newTotal, 0, count);
+            mPointX = newX;
+            mPointTotal = newTotal;
+        }
+        mPointX[count] = x;
+        mPointTotal[count] = total;
+        mPointCount = count + 1;
+    }
+
     public void setEndTime(long endTime) {
         mEndTime = endTime;
     }
@@ -72,6 +72,10 @@ class AccessPoint extends Preference {
     private WifiInfo mInfo;
     private DetailedState mState;
 
+    /** Set between {@link #beginUpdate} and {@link #endUpdate}. */
+    private boolean mUpdating;
+    private int mLevelBeforeUpdate;
+
     static int getSecurity(WifiConfiguration config) {
         if (config.allowedKeyManagement.get(KeyMgmt.WPA_PSK)) {
             return SECURITY_PSK;
@@ -83,7 +87,7 @@ class AccessPoint extends Preference {
         return (config.wepKeys[0] != null) ? SECURITY_WEP : SECURITY_NONE;
     }
 
-    private static int getSecurity(ScanResult result) {
+    static int getSecurity(ScanResult result) {
         if (result.capabilities.contains("WEP")) {
             return SECURITY_WEP;
         } else if (result.capabilities.contains("PSK")) {
@@ -94,6 +98,16 @@ class AccessPoint extends Preference {
         return SECURITY_NONE;
     }
 
+    /** Identifies the network of a saved configuration from one scan to the next. */
+    static String getKey(WifiConfiguration config) {
+        return "#" + config.networkId;
+    }
+
+    /** Identifies the network of an unsaved scan result from one scan to the next. */
+    static String getKey(ScanResult result) {
+        return getSecurity(result) + ":" + result.SSID;
+    }
+
     public String getSecurityString(boolean concise) {
         Context context = getContext();
         switch(security) {
@@ -223,43 +237,96 @@ class AccessPoint extends Preference {
             return 1;
         }
         AccessPoint other = (AccessPoint) preference;
+        return compare(mInfo != null, getLevel(), networkId, ssid, security,
+                other.mInfo != null, other.getLevel(), other.networkId, other.ssid,
+                other.security);
+    }
+
+    /**
+     * Orders access points as shown; also used by {@link AccessPointLoader} to
+     * sort networks before their access points exist.  A level of -1 means out
+     * of range.
+     */
+    static int compare(boolean active, int level, int networkId, String ssid, int security,
+            boolean otherActive, int otherLevel, int otherNetworkId, String otherSsid,
+            int otherSecurity) {
         // Active one goes first.
-        if (mInfo != null && other.mInfo == null) return -1;
-        if (mInfo == null && other.mInfo != null) return 1;
+        if (active && !otherActive) return -1;
+        if (!active && otherActive) return 1;
 
         // Reachable one goes before unreachable one.
-        if (mRssi != Integer.MAX_VALUE && other.mRssi == Integer.MAX_VALUE) return -1;
-        if (mRssi == Integer.MAX_VALUE && other.mRssi != Integer.MAX_VALUE) return 1;
+        if (level != -1 && otherLevel == -1) return -1;
+        if (level == -1 && otherLevel != -1) return 1;
 
         // Configured one goes before unconfigured one.
         if (networkId != WifiConfiguration.INVALID_NETWORK_ID
-                && other.networkId == WifiConfiguration.INVALID_NETWORK_ID) return -1;
+                && otherNetworkId == WifiConfiguration.INVALID_NETWORK_ID) return -1;
         if (networkId == WifiConfiguration.INVALID_NETWORK_ID
-                && other.networkId != WifiConfiguration.INVALID_NETWORK_ID) return 1;
+                && otherNetworkId != WifiConfiguration.INVALID_NETWORK_ID) return 1;
 
-        // Sort by signal strength.
-        int difference = WifiManager.compareSignalLevel(other.mRssi, mRssi);
+        // Sort by the signal level shown, as the raw strength changes with every scan.
+        int difference = otherLevel - level;
         if (difference != 0) {
             return difference;
         }
         // Sort by ssid.
-        return ssid.compareToIgnoreCase(other.ssid);
+        difference = ssid.compareToIgnoreCase(otherSsid);
+        if (difference != 0) {
+            return difference;
+        }
+        // Keep the order of different networks with the same name stable.
+        difference = ssid.compareTo(otherSsid);
+        if (difference != 0) {
+            return difference;
+        }
+        if (security != otherSecurity) {
+            return security - otherSecurity;
+        }
+        return networkId - otherNetworkId;
     }
 
-    @Override
-    public boolean equals(Object other) {
-        if (!(other instanceof AccessPoint)) return false;
-        return (this.compareTo((AccessPoint) other) == 0);
+    /**
+     * Reloads a configured access point shown by a previous scan, as if it had
+     * just been created from the given configuration but keeping its connection
+     * state.  Scan results are then applied with {@link #update(ScanResult)}
+     * and {@link #endUpdate} refreshes what is shown.
+     */
+    void beginUpdate(WifiConfiguration config) {
+        startUpdate();
+        wpsAvailable = false;
+        pskType = PskType.UNKNOWN;
+        mScanResult = null;
+        loadConfig(config);
     }
 
-    @Override
-    public int hashCode() {
-        int result = 0;
-        if (mInfo != null) result += 13 * mInfo.hashCode();
-        result += 19 * mRssi;
-        result += 23 * networkId;
-        result += 29 * ssid.hashCode();
-        return result;
+    /**
+     * Reloads an unsaved access point shown by a previous scan from the first
+     * scan result of its network; see {@link #beginUpdate(WifiConfiguration)}.
+     */
+    void beginUpdate(ScanResult result) {
+        startUpdate();
+        pskType = PskType.UNKNOWN;
+        mConfig = null;
+        loadResult(result);
+    }
+
+    private void startUpdate() {
+        mLevelBeforeUpdate = getLevel();
+        mUpdating = true;
+    }
+
+    /** Shows the result of an update, only rebinding the view if the signal changed. */
+    void endUpdate() {
+        mUpdating = false;
+        if (getLevel() != mLevelBeforeUpdate) {
+            notifyChanged();
+        }
+        refresh();
+    }
+
+    /** Re-sorts the list this access point is in, e.g. after its signal level changed. */
+    void reorder() {
+        notifyHierarchyChanged();
     }
 
     boolean update(ScanResult result) {
@@ -267,7 +334,7 @@ class AccessPoint extends Preference {
             if (WifiManager.compareSignalLevel(result.level, mRssi) > 0) {
                 int oldLevel = getLevel();
                 mRssi = result.level;
-                if (getLevel() != oldLevel) {
+                if (!mUpdating && getLevel() != oldLevel) {
                     notifyChanged();
                 }
             }
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.wifi;
+
+import static android.net.wifi.WifiConfiguration.INVALID_NETWORK_ID;
+
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the list of networks shown by {@link WifiSettings} on a background
+ * thread: the configured networks and scan results are fetched from
+ * {@link WifiManager}, merged by SSID and security, and sorted into a
+ * {@link Snapshot}.  Only turning the snapshot into preferences is left to the
+ * UI thread.  Loads requested while one is running are coalesced into one more.
+ */
+class AccessPointLoader {
+    private static final String TAG = "AccessPointLoader";
+    private static final boolean DEBUG = false;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    interface Callback {
+        /** Called on the UI thread with the result of {@link AccessPointLoader#load}. */
+        void onAccessPointsLoaded(Snapshot snapshot);
+    }
+
+    /**
+     * A network to show: a configured one, or an unsaved one seen by the scan,
+     * with the scan results that belong to it.
+     */
+    static final class Entry implements Comparable<Entry> {
+        /** See {@link AccessPoint#getKey}. */
+        final String key;
+        /** Null for unsaved networks. */
+        final WifiConfiguration config;
+        /** Never empty for unsaved networks, whose access point is created from the first. */
+        final List<ScanResult> results;
+        final String ssid;
+        final int security;
+        final int networkId;
+        final boolean active;
+        final int level;
+
+        private Entry(String key, WifiConfiguration config, List<ScanResult> results,
+                String ssid, int security, int networkId, boolean active, int rssi) {
+            this.key = key;
+            this.config = config;
+            this.results = Collections.unmodifiableList(results);
+            this.ssid = ssid;
+            this.security = security;
+            this.networkId = networkId;
+            this.active = active;
+            this.level = rssi == Integer.MAX_VALUE ? -1 : WifiManager.calculateSignalLevel(rssi, 4);
+        }
+
+        public int compareTo(Entry other) {
+            return AccessPoint.compare(active, level, networkId, ssid, security,
+                    other.active, other.level, other.networkId, other.ssid, other.security);
+        }
+    }
+
+    static final class Snapshot {
+        /** In the order the access points are shown. */
+        final List<Entry> entries;
+        final List<ScanResult> scanResults;
+        /** Whether scan results arrived since the previous snapshot was requested. */
+        final boolean newScanResults;
+
+        private Snapshot(List<Entry> entries, List<ScanResult> scanResults,
+                boolean newScanResults) {
+            this.entries = Collections.unmodifiableList(entries);
+            this.scanResults = scanResults != null
+                    ? Collections.unmodifiableList(scanResults)
+                    : Collections.<ScanResult>emptyList();
+            this.newScanResults = newScanResults;
+        }
+    }
+
+    /** An entry while scan results are being matched to it. */
+    private static class PendingEntry {
+        String key;
+        WifiConfiguration config;
+        final ArrayList<ScanResult> results = new ArrayList<ScanResult>(2);
+        String ssid;
+        int security;
+        int networkId = INVALID_NETWORK_ID;
+        boolean active;
+        int rssi = Integer.MAX_VALUE;
+
+        Entry toEntry() {
+            return new Entry(key, config, results, ssid, security, networkId, active, rssi);
+        }
+    }
+
+    /**
+     * Counts durations in power of two millisecond buckets.
+     */
+    static class LatencyHistogram {
+        private static final int BUCKETS = 12;
+
+        private final String mName;
+        private final int[] mCounts = new int[BUCKETS];
+
+        LatencyHistogram(String name) {
+            mName = name;
+        }
+
+        synchronized void add(long millis) {
+            int bucket = 0;
+            while (bucket < BUCKETS - 1 && millis >= (1L << bucket)) {
+                bucket++;
+            }
+            mCounts[bucket]++;
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder sb = new StringBuilder(mName).append('{');
+            boolean first = true;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (mCounts[i] == 0) continue;
+                if (!first) sb.append(' ');
+                first = false;
+                if (i < BUCKETS - 1) {
+                    sb.append('<').append(1L << i);
+                } else {
+                    sb.append(">=").append(1L << (BUCKETS - 2));
+                }
+                sb.append("ms:").append(mCounts[i]);
+            }
+            return sb.append('}').toString();
+        }
+    }
+
+    private final WifiManager mWifiManager;
+    private final Callback mCallback;
+    private final Handler mHandler = new Handler();
+
+    // Only used on the UI thread.
+    private boolean mLoading;
+    private boolean mReloadRequested;
+    private WifiInfo mPendingInfo;
+    private boolean mPendingNewScanResults;
+    /** Incremented by {@link #cancel}, to drop the result of the running load. */
+    private int mGeneration;
+
+    private final LatencyHistogram mFetchLatency = new LatencyHistogram("fetch");
+    private final LatencyHistogram mMergeLatency = new LatencyHistogram("merge");
+    private final LatencyHistogram mBindLatency = new LatencyHistogram("bind");
+
+    AccessPointLoader(WifiManager wifiManager, Callback callback) {
+        mWifiManager = wifiManager;
+        mCallback = callback;
+    }
+
+    /**
+     * Builds a new snapshot, ordering the network of the given connection
+     * first, and hands it to the callback.
+     */
+    void load(WifiInfo info, boolean newScanResults) {
+        mPendingInfo = info;
+        mPendingNewScanResults |= newScanResults;
+        if (mLoading) {
+            mReloadRequested = true;
+            return;
+        }
+        start();
+    }
+
+    /** Drops the result of the running load and any requested after it. */
+    void cancel() {
+        mGeneration++;
+        mReloadRequested = false;
+        mPendingNewScanResults = false;
+    }
+
+    /** Records how long the UI thread took to show a snapshot. */
+    void recordBind(long millis) {
+        mBindLatency.add(millis);
+    }
+
+    private void start() {
+        mLoading = true;
+        mReloadRequested = false;
+        final WifiInfo info = mPendingInfo;
+        final boolean newScanResults = mPendingNewScanResults;
+        mPendingNewScanResults = false;
+        final int generation = mGeneration;
+
+        sExecutor.execute(new Runnable() {
+            public void run() {
+                final Snapshot snapshot = build(info, newScanResults);
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        mLoading = false;
+                        if (generation == mGeneration) {
+                            mCallback.onAccessPointsLoaded(snapshot);
+                        }
+                        if (mReloadRequested) {
+                            start();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private Snapshot build(WifiInfo info, boolean newScanResults) {
+        final long fetchStart = SystemClock.uptimeMillis();
+        final List<WifiConfiguration> configs = mWifiManager.getConfiguredNetworks();
+        final List<ScanResult> results = mWifiManager.getScanResults();
+        final long mergeStart = SystemClock.uptimeMillis();
+        mFetchLatency.add(mergeStart - fetchStart);
+
+        final ArrayList<PendingEntry> pending = new ArrayList<PendingEntry>();
+        /** Maps SSID -> entries with the given SSID, to match scan results quickly. */
+        final HashMap<String, List<PendingEntry>> bySsid =
+                new HashMap<String, List<PendingEntry>>();
+
+        if (configs != null) {
+            for (WifiConfiguration config : configs) {
+                final PendingEntry entry = new PendingEntry();
+                entry.key = AccessPoint.getKey(config);
+                entry.config = config;
+                entry.ssid = (config.SSID == null ? ""
+                        : AccessPoint.removeDoubleQuotes(config.SSID));
+                entry.security = AccessPoint.getSecurity(config);
+                entry.networkId = config.networkId;
+                if (info != null && entry.networkId != INVALID_NETWORK_ID
+                        && entry.networkId == info.getNetworkId()) {
+                    entry.active = true;
+                    entry.rssi = info.getRssi();
+                }
+                pending.add(entry);
+                put(bySsid, entry);
+            }
+        }
+
+        if (results != null) {
+            for (ScanResult result : results) {
+                // Ignore hidden and ad-hoc networks.
+                if (result.SSID == null || result.SSID.length() == 0 ||
+                        result.capabilities.contains("[IBSS]")) {
+                    continue;
+                }
+
+                final int security = AccessPoint.getSecurity(result);
+                boolean found = false;
+                final List<PendingEntry> sameSsid = bySsid.get(result.SSID);
+                if (sameSsid != null) {
+                    for (PendingEntry entry : sameSsid) {
+                        if (entry.security == security) {
+                            entry.results.add(result);
+                            if (WifiManager.compareSignalLevel(result.level, entry.rssi) > 0) {
+                                entry.rssi = result.level;
+                            }
+                            found = true;
+                        }
+                    }
+                }
+                if (!found) {
+                    final PendingEntry entry = new PendingEntry();
+                    entry.key = AccessPoint.getKey(result);
+                    entry.results.add(result);
+                    entry.ssid = result.SSID;
+                    entry.security = security;
+                    entry.rssi = result.level;
+                    pending.add(entry);
+                    put(bySsid, entry);
+                }
+            }
+        }
+
+        final ArrayList<Entry> entries = new ArrayList<Entry>(pending.size());
+        for (int i = 0; i < pending.size(); i++) {
+            entries.add(pending.get(i).toEntry());
+        }
+        Collections.sort(entries);
+        final long end = SystemClock.uptimeMillis();
+        mMergeLatency.add(end - mergeStart);
+        if (DEBUG) {
+            Log.d(TAG, "Loaded " + entries.size() + " networks in " + (end - fetchStart) + "ms");
+        }
+        return new Snapshot(entries, results, newScanResults);
+    }
+
+    private static void put(HashMap<String, List<PendingEntry>> bySsid, PendingEntry entry) {
+        List<PendingEntry> entries = bySsid.get(entry.ssid);
+        if (entries == null) {
+            entries = new ArrayList<PendingEntry>(3);
+            bySsid.put(entry.ssid, entries);
+        }
+        entries.add(entry);
+    }
+
+    @Override
+    public String toString() {
+        return "AccessPointLoader{" + mFetchLatency + " " + mMergeLatency + " "
+                + mBindLatency + "}";
+    }
+}
@@ -42,6 +42,7 @@ import android.net.wifi.WpsInfo;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceScreen;
@@ -50,6 +51,7 @@ import android.security.KeyStore;
 import android.telephony.TelephonyManager;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.Gravity;
@@ -60,6 +62,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.Button;
 import android.widget.ImageButton;
@@ -75,10 +78,11 @@ import com.android.settings.SettingsPreferenceFragment;
 import com.android.settings.wifi.p2p.WifiP2pSettings;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -92,6 +96,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class WifiSettings extends SettingsPreferenceFragment
         implements DialogInterface.OnClickListener  {
     private static final String TAG = "WifiSettings";
+    private static final boolean DEBUG = false;
     private static final int MENU_ID_WPS_PBC = Menu.FIRST;
     private static final int MENU_ID_WPS_PIN = Menu.FIRST + 1;
     private static final int MENU_ID_P2P = Menu.FIRST + 2;
@@ -110,6 +115,10 @@ public class WifiSettings extends SettingsPreferenceFragment
 
     // Combo scans can take 5-6s to complete - set to 10s.
     private static final int WIFI_RESCAN_INTERVAL_MS = 10 * 1000;
+    // Used while nothing is found or the signal of the connection drops.
+    private static final int WIFI_RESCAN_FAST_INTERVAL_MS = 6 * 1000;
+    // The interval doubles up to this while scans keep finding the same networks.
+    private static final int WIFI_RESCAN_MAX_INTERVAL_MS = 80 * 1000;
 
     // Instance state keys
     private static final String SAVE_DIALOG_EDIT_MODE = "edit_mode";
@@ -118,6 +127,7 @@ public class WifiSettings extends SettingsPreferenceFragment
     private final IntentFilter mFilter;
     private final BroadcastReceiver mReceiver;
     private final Scanner mScanner;
+    private AccessPointLoader mLoader;
 
     private WifiManager mWifiManager;
     private WifiManager.ActionListener mConnectListener;
@@ -133,6 +143,32 @@ public class WifiSettings extends SettingsPreferenceFragment
     private DetailedState mLastState;
     private WifiInfo mLastInfo;
 
+    /** Access points of the last update by {@link AccessPoint#getKey}, reused by the next. */
+    private final HashMap<String, AccessPoint> mAccessPoints = new HashMap<String, AccessPoint>();
+    /** Access points shown by the last update, in order. */
+    private final ArrayList<AccessPoint> mShownAccessPoints = new ArrayList<AccessPoint>();
+
+    /** Set while an update of the access points waits for the next frame. */
+    private boolean mUpdatePending;
+    /** Set when new scan results haven't been looked at by {@link #mScanner} yet. */
+    private boolean mScanResultsPending;
+    /** Set when an update came while the list was scrolling, to run once it stops. */
+    private boolean mUpdateDeferred;
+    private boolean mScrolling;
+
+    private final Choreographer.FrameCallback mUpdateCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mUpdatePending = false;
+            if (mScrolling) {
+                // Don't move rows under the user's finger.
+                mUpdateDeferred = true;
+            } else {
+                updateAccessPoints();
+            }
+        }
+    };
+
     private AtomicBoolean mConnected = new AtomicBoolean(false);
 
     private int mKeyStoreNetworkId = INVALID_NETWORK_ID;
@@ -278,6 +314,11 @@ public class WifiSettings extends SettingsPreferenceFragment
 
         mP2pSupported = getPackageManager().hasSystemFeature(PackageManager.FEATURE_WIFI_DIRECT);
         mWifiManager = (WifiManager) getSystemService(Context.WIFI_SERVICE);
+        mLoader = new AccessPointLoader(mWifiManager, new AccessPointLoader.Callback() {
+            public void onAccessPointsLoaded(AccessPointLoader.Snapshot snapshot) {
+                WifiSettings.this.onAccessPointsLoaded(snapshot);
+            }
+        });
 
         mConnectListener = new WifiManager.ActionListener() {
                                    public void onSuccess() {
@@ -397,6 +438,20 @@ public class WifiSettings extends SettingsPreferenceFragment
 
         mEmptyView = (TextView) getView().findViewById(android.R.id.empty);
         getListView().setEmptyView(mEmptyView);
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                mScrolling = scrollState != SCROLL_STATE_IDLE;
+                if (!mScrolling && mUpdateDeferred) {
+                    updateAccessPoints();
+                }
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+            }
+        });
 
         if (!mSetupWizardMode) {
             registerForContextMenu(getListView());
@@ -429,6 +484,12 @@ public class WifiSettings extends SettingsPreferenceFragment
         }
         getActivity().unregisterReceiver(mReceiver);
         mScanner.pause();
+        if (mUpdatePending) {
+            Choreographer.getInstance().removeFrameCallback(mUpdateCallback);
+            mUpdatePending = false;
+        }
+        mLoader.cancel();
+        if (DEBUG) Log.d(TAG, "Paused, " + mScanner + " " + mLoader);
     }
 
     @Override
@@ -715,6 +776,12 @@ public class WifiSettings extends SettingsPreferenceFragment
      * the strength of network and the security for it.
      */
     private void updateAccessPoints() {
+        if (mUpdatePending) {
+            Choreographer.getInstance().removeFrameCallback(mUpdateCallback);
+            mUpdatePending = false;
+        }
+        mUpdateDeferred = false;
+
         // Safeguard from some delayed event handling
         if (getActivity() == null) return;
 
@@ -722,15 +789,9 @@ public class WifiSettings extends SettingsPreferenceFragment
 
         switch (wifiState) {
             case WifiManager.WIFI_STATE_ENABLED:
-                // AccessPoints are automatically sorted with TreeSet.
-                final Collection<AccessPoint> accessPoints = constructAccessPoints();
-                getPreferenceScreen().removeAll();
-                if(accessPoints.size() == 0) {
-                    addMessagePreference(R.string.wifi_empty_list_wifi_on);
-                }
-                for (AccessPoint accessPoint : accessPoints) {
-                    getPreferenceScreen().addPreference(accessPoint);
-                }
+                // Shown by onAccessPointsLoaded()
+                mLoader.load(mLastInfo, mScanResultsPending);
+                mScanResultsPending = false;
                 break;
 
             case WifiManager.WIFI_STATE_ENABLING:
@@ -747,72 +808,124 @@ public class WifiSettings extends SettingsPreferenceFragment
         }
     }
 
+    private void onAccessPointsLoaded(AccessPointLoader.Snapshot snapshot) {
+        if (getActivity() == null
+                || mWifiManager.getWifiState() != WifiManager.WIFI_STATE_ENABLED) {
+            return;
+        }
+        final long start = SystemClock.uptimeMillis();
+        if (snapshot.newScanResults) {
+            mScanner.onScanResults(snapshot.scanResults);
+        }
+        final List<AccessPoint> accessPoints = constructAccessPoints(snapshot);
+        if (accessPoints.size() == 0) {
+            addMessagePreference(R.string.wifi_empty_list_wifi_on);
+        } else {
+            showAccessPoints(accessPoints);
+        }
+        mLoader.recordBind(SystemClock.uptimeMillis() - start);
+    }
+
+    /**
+     * Updates the access points on the next frame, so that a burst of
+     * broadcasts only rebuilds the list once.
+     */
+    private void scheduleUpdateAccessPoints() {
+        if (!mUpdatePending) {
+            mUpdatePending = true;
+            Choreographer.getInstance().postFrameCallback(mUpdateCallback);
+        }
+    }
+
     private void addMessagePreference(int messageId) {
         if (mEmptyView != null) mEmptyView.setText(messageId);
         getPreferenceScreen().removeAll();
+        mAccessPoints.clear();
+        mShownAccessPoints.clear();
     }
 
-    /** Returns sorted list of access points */
-    private List<AccessPoint> constructAccessPoints() {
-        ArrayList<AccessPoint> accessPoints = new ArrayList<AccessPoint>();
-        /** Lookup table to more quickly update AccessPoints by only considering objects with the
-         * correct SSID.  Maps SSID -> List of AccessPoints with the given SSID.  */
-        Multimap<String, AccessPoint> apMap = new Multimap<String, AccessPoint>();
-
-        final List<WifiConfiguration> configs = mWifiManager.getConfiguredNetworks();
-        if (configs != null) {
-            for (WifiConfiguration config : configs) {
-                AccessPoint accessPoint = new AccessPoint(getActivity(), config);
-                accessPoint.update(mLastInfo, mLastState);
-                accessPoints.add(accessPoint);
-                apMap.put(accessPoint.ssid, accessPoint);
+    /**
+     * Makes the screen show the given sorted access points, only adding and
+     * removing the ones that appeared or went away so that the rows of the
+     * others aren't rebound on every scan.
+     */
+    private void showAccessPoints(List<AccessPoint> accessPoints) {
+        final PreferenceScreen screen = getPreferenceScreen();
+        final Set<AccessPoint> wanted = Collections.newSetFromMap(
+                new IdentityHashMap<AccessPoint, Boolean>());
+        wanted.addAll(accessPoints);
+        final Set<Preference> shown = Collections.newSetFromMap(
+                new IdentityHashMap<Preference, Boolean>());
+
+        boolean changed = false;
+        for (int i = screen.getPreferenceCount() - 1; i >= 0; --i) {
+            final Preference preference = screen.getPreference(i);
+            if (wanted.contains(preference)) {
+                shown.add(preference);
+            } else {
+                screen.removePreference(preference);
+                changed = true;
             }
         }
-
-        final List<ScanResult> results = mWifiManager.getScanResults();
-        if (results != null) {
-            for (ScanResult result : results) {
-                // Ignore hidden and ad-hoc networks.
-                if (result.SSID == null || result.SSID.length() == 0 ||
-                        result.capabilities.contains("[IBSS]")) {
-                    continue;
-                }
-
-                boolean found = false;
-                for (AccessPoint accessPoint : apMap.getAll(result.SSID)) {
-                    if (accessPoint.update(result))
-                        found = true;
-                }
-                if (!found) {
-                    AccessPoint accessPoint = new AccessPoint(getActivity(), result);
-                    accessPoints.add(accessPoint);
-                    apMap.put(accessPoint.ssid, accessPoint);
-                }
+        for (AccessPoint accessPoint : accessPoints) {
+            if (!shown.contains(accessPoint)) {
+                screen.addPreference(accessPoint);
+                changed = true;
             }
         }
-
-        // Pre-sort accessPoints to speed preference insertion
-        Collections.sort(accessPoints);
-        return accessPoints;
+        // Adding or removing re-sorts the list; otherwise only do it if the order changed.
+        if (!changed && !accessPoints.equals(mShownAccessPoints)) {
+            accessPoints.get(0).reorder();
+        }
+        mShownAccessPoints.clear();
+        mShownAccessPoints.addAll(accessPoints);
     }
 
-    /** A restricted multimap for use in constructAccessPoints */
-    private class Multimap<K,V> {
-        private HashMap<K,List<V>> store = new HashMap<K,List<V>>();
-        /** retrieve a non-null list of values with key K */
-        List<V> getAll(K key) {
-            List<V> values = store.get(key);
-            return values != null ? values : Collections.<V>emptyList();
+    /**
+     * Returns the access points of the given snapshot, in its order.  Access
+     * points of the last update whose network is still around are updated in
+     * place rather than created again.
+     */
+    private List<AccessPoint> constructAccessPoints(AccessPointLoader.Snapshot snapshot) {
+        final ArrayList<AccessPoint> accessPoints =
+                new ArrayList<AccessPoint>(snapshot.entries.size());
+        final HashMap<String, AccessPoint> previous =
+                new HashMap<String, AccessPoint>(mAccessPoints);
+        final ArrayList<AccessPoint> reused = new ArrayList<AccessPoint>();
+        mAccessPoints.clear();
+
+        for (AccessPointLoader.Entry entry : snapshot.entries) {
+            final List<ScanResult> results = entry.results;
+            AccessPoint accessPoint = previous.remove(entry.key);
+            int updateFrom = 0;
+            if (entry.config != null) {
+                if (accessPoint != null) {
+                    accessPoint.beginUpdate(entry.config);
+                    reused.add(accessPoint);
+                } else {
+                    accessPoint = new AccessPoint(getActivity(), entry.config);
+                }
+                accessPoint.update(mLastInfo, mLastState);
+            } else {
+                if (accessPoint != null) {
+                    accessPoint.beginUpdate(results.get(0));
+                    reused.add(accessPoint);
+                } else {
+                    accessPoint = new AccessPoint(getActivity(), results.get(0));
+                }
+                updateFrom = 1;
+            }
+            for (int i = updateFrom; i < results.size(); i++) {
+                accessPoint.update(results.get(i));
+            }
+            accessPoints.add(accessPoint);
+            mAccessPoints.put(entry.key, accessPoint);
         }
 
-        void put(K key, V val) {
-            List<V> curVals = store.get(key);
-            if (curVals == null) {
-                curVals = new ArrayList<V>(3);
-                store.put(key, curVals);
-            }
-            curVals.add(val);
+        for (int i = 0; i < reused.size(); i++) {
+            reused.get(i).endUpdate();
         }
+        return accessPoints;
     }
 
     private void handleEvent(Context context, Intent intent) {
@@ -820,10 +933,12 @@ public class WifiSettings extends SettingsPreferenceFragment
         if (WifiManager.WIFI_STATE_CHANGED_ACTION.equals(action)) {
             updateWifiState(intent.getIntExtra(WifiManager.EXTRA_WIFI_STATE,
                     WifiManager.WIFI_STATE_UNKNOWN));
-        } else if (WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(action) ||
-                WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION.equals(action) ||
+        } else if (WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(action)) {
+            mScanResultsPending = true;
+            scheduleUpdateAccessPoints();
+        } else if (WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION.equals(action) ||
                 WifiManager.LINK_CONFIGURATION_CHANGED_ACTION.equals(action)) {
-                updateAccessPoints();
+            scheduleUpdateAccessPoints();
         } else if (WifiManager.SUPPLICANT_STATE_CHANGED_ACTION.equals(action)) {
             //Ignore supplicant state changes when network is connected
             //TODO: we should deprecate SUPPLICANT_STATE_CHANGED_ACTION and
@@ -873,6 +988,7 @@ public class WifiSettings extends SettingsPreferenceFragment
         if (state != null) {
             mLastState = state;
         }
+        mScanner.onConnectionInfo(mLastInfo);
 
         for (int i = getPreferenceScreen().getPreferenceCount() - 1; i >= 0; --i) {
             // Maybe there's a WifiConfigPreference
@@ -909,8 +1025,24 @@ public class WifiSettings extends SettingsPreferenceFragment
         mScanner.pause();
     }
 
+    /**
+     * Scans periodically while the screen is shown.  The interval doubles while
+     * scans keep finding the same networks at the same signal levels, and gets
+     * short while nothing is found or the signal of the connection drops.
+     * Results of scans started by anyone else count too.
+     */
     private class Scanner extends Handler {
         private int mRetry = 0;
+        private int mInterval = WIFI_RESCAN_INTERVAL_MS;
+        /** Signal level of each access point of the last results, by BSSID. */
+        private final HashMap<String, Integer> mLastLevels = new HashMap<String, Integer>();
+        private int mLastConnectedLevel = -1;
+
+        private int mScanCount;
+        private int mFailedScanCount;
+        private int mResultsCount;
+        private int mUnchangedCount;
+        private int mChurn;
 
         void resume() {
             if (!hasMessages(0)) {
@@ -919,6 +1051,7 @@ public class WifiSettings extends SettingsPreferenceFragment
         }
 
         void forceScan() {
+            mInterval = WIFI_RESCAN_INTERVAL_MS;
             removeMessages(0);
             sendEmptyMessage(0);
         }
@@ -928,11 +1061,68 @@ public class WifiSettings extends SettingsPreferenceFragment
             removeMessages(0);
         }
 
+        /** Moves the next scan to the current interval from now, unless paused. */
+        private void reschedule() {
+            if (hasMessages(0)) {
+                removeMessages(0);
+                sendEmptyMessageDelayed(0, mInterval);
+            }
+        }
+
+        void onScanResults(List<ScanResult> results) {
+            mResultsCount++;
+            // Networks that appeared, went away or changed signal level.
+            int churn = 0;
+            final HashMap<String, Integer> levels = new HashMap<String, Integer>();
+            if (results != null) {
+                for (ScanResult result : results) {
+                    if (result.BSSID == null) continue;
+                    final int level = WifiManager.calculateSignalLevel(result.level, 4);
+                    final Integer lastLevel = mLastLevels.remove(result.BSSID);
+                    if (lastLevel == null || lastLevel != level) {
+                        churn++;
+                    }
+                    levels.put(result.BSSID, level);
+                }
+            }
+            churn += mLastLevels.size();
+            mLastLevels.clear();
+            mLastLevels.putAll(levels);
+            mChurn += churn;
+
+            if (levels.isEmpty()) {
+                mInterval = WIFI_RESCAN_FAST_INTERVAL_MS;
+            } else if (churn == 0) {
+                mUnchangedCount++;
+                mInterval = Math.min(Math.max(mInterval, WIFI_RESCAN_INTERVAL_MS) * 2,
+                        WIFI_RESCAN_MAX_INTERVAL_MS);
+            } else {
+                mInterval = WIFI_RESCAN_INTERVAL_MS;
+            }
+            if (DEBUG) Log.d(TAG, levels.size() + " results, " + churn + " changed, next scan in "
+                    + mInterval + "ms");
+            reschedule();
+        }
+
+        void onConnectionInfo(WifiInfo info) {
+            final int level = info != null && info.getNetworkId() != INVALID_NETWORK_ID
+                    ? WifiManager.calculateSignalLevel(info.getRssi(), 4) : -1;
+            if (level >= 0 && level < mLastConnectedLevel
+                    && mInterval > WIFI_RESCAN_FAST_INTERVAL_MS) {
+                // Look for something better soon.
+                mInterval = WIFI_RESCAN_FAST_INTERVAL_MS;
+                reschedule();
+            }
+            mLastConnectedLevel = level;
+        }
+
         @Override
         public void handleMessage(Message message) {
             if (mWifiManager.startScanActive()) {
                 mRetry = 0;
+                mScanCount++;
             } else if (++mRetry >= 3) {
+                mFailedScanCount++;
                 mRetry = 0;
                 Activity activity = getActivity();
                 if (activity != null) {
@@ -941,7 +1131,14 @@ public class WifiSettings extends SettingsPreferenceFragment
                 }
                 return;
             }
-            sendEmptyMessageDelayed(0, WIFI_RESCAN_INTERVAL_MS);
+            sendEmptyMessageDelayed(0, mInterval);
+        }
+
+        @Override
+        public String toString() {
+            return "Scanner{scans=" + mScanCount + " failed=" + mFailedScanCount
+                    + " results=" + mResultsCount + " unchanged=" + mUnchangedCount
+                    + " churn=" + mChurn + " interval=" + mInterval + "}";
         }
     }
 
@@ -84,6 +84,20 @@ public class WifiP2pPeer extends Preference {
         return device.deviceAddress.compareToIgnoreCase(other.device.deviceAddress);
     }
 
+    /**
+     * Shows the latest state of the same device, rebinding and re-sorting the
+     * list only if something shown changed.
+     */
+    void update(WifiP2pDevice dev) {
+        // Only the name and status are shown, and they are also what the list is sorted by.
+        final boolean changed = dev.status != device.status
+                || !TextUtils.equals(dev.deviceName, device.deviceName);
+        device = dev;
+        if (changed) {
+            notifyHierarchyChanged();
+        }
+    }
+
     int getLevel() {
         if (mRssi == Integer.MAX_VALUE) {
             return -1;
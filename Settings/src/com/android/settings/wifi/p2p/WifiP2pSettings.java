@@ -33,6 +33,7 @@ import android.net.wifi.p2p.WifiP2pDeviceList;
 import android.net.wifi.p2p.WifiP2pGroup;
 import android.net.wifi.p2p.WifiP2pGroupList;
 import android.net.wifi.p2p.WifiP2pManager;
+import android.net.wifi.p2p.WifiP2pManager.ChannelListener;
 import android.net.wifi.p2p.WifiP2pManager.GroupInfoListener;
 import android.net.wifi.p2p.WifiP2pManager.PeerListListener;
 import android.net.wifi.p2p.WifiP2pManager.PersistentGroupInfoListener;
@@ -59,6 +60,7 @@ import com.android.settings.R;
 import com.android.settings.SettingsPreferenceFragment;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Collection;
 
@@ -103,6 +105,13 @@ public class WifiP2pSettings extends SettingsPreferenceFragment
 
     private WifiP2pDevice mThisDevice;
     private WifiP2pDeviceList mPeers = new WifiP2pDeviceList();
+    /** Preferences of the peers shown, by device address. */
+    private final HashMap<String, WifiP2pPeer> mPeerPrefs = new HashMap<String, WifiP2pPeer>();
+
+    /** Set while a requestPeers() call hasn't been answered yet. */
+    private boolean mPeerRequestPending;
+    /** Set when the peers changed again while a request was pending. */
+    private boolean mPeersChanged;
 
     private String mSavedDeviceName;
 
@@ -116,9 +125,7 @@ public class WifiP2pSettings extends SettingsPreferenceFragment
                     WifiP2pManager.WIFI_P2P_STATE_DISABLED) == WifiP2pManager.WIFI_P2P_STATE_ENABLED;
                 handleP2pStateChanged();
             } else if (WifiP2pManager.WIFI_P2P_PEERS_CHANGED_ACTION.equals(action)) {
-                if (mWifiP2pManager != null) {
-                    mWifiP2pManager.requestPeers(mChannel, WifiP2pSettings.this);
-                }
+                requestPeers();
             } else if (WifiP2pManager.WIFI_P2P_CONNECTION_CHANGED_ACTION.equals(action)) {
                 if (mWifiP2pManager == null) return;
                 NetworkInfo networkInfo = (NetworkInfo) intent.getParcelableExtra(
@@ -168,7 +175,13 @@ public class WifiP2pSettings extends SettingsPreferenceFragment
         final Activity activity = getActivity();
         mWifiP2pManager = (WifiP2pManager) getSystemService(Context.WIFI_P2P_SERVICE);
         if (mWifiP2pManager != null) {
-            mChannel = mWifiP2pManager.initialize(activity, getActivity().getMainLooper(), null);
+            mChannel = mWifiP2pManager.initialize(activity, getActivity().getMainLooper(),
+                    new ChannelListener() {
+                        public void onChannelDisconnected() {
+                            // A pending request will never be answered.
+                            mPeerRequestPending = false;
+                        }
+                    });
             if (mChannel == null) {
                 //Failure to set up connection
                 Log.e(TAG, "Failed to set up connection with wifi p2p service");
@@ -289,6 +302,8 @@ public class WifiP2pSettings extends SettingsPreferenceFragment
     @Override
     public void onResume() {
         super.onResume();
+        // Answers to requests made before we were paused may have been lost.
+        mPeerRequestPending = false;
         getActivity().registerReceiver(mReceiver, mIntentFilter);
     }
 
@@ -463,17 +478,49 @@ public class WifiP2pSettings extends SettingsPreferenceFragment
         }
     }
 
+    /**
+     * Asks for the current peers, unless a request is still pending, in which
+     * case another one is made once it is answered.  Discovery can change the
+     * peers many times a second.
+     */
+    private void requestPeers() {
+        if (mWifiP2pManager == null) return;
+        if (mPeerRequestPending) {
+            mPeersChanged = true;
+            return;
+        }
+        mPeerRequestPending = true;
+        mPeersChanged = false;
+        mWifiP2pManager.requestPeers(mChannel, WifiP2pSettings.this);
+    }
+
     public void onPeersAvailable(WifiP2pDeviceList peers) {
-        mPeersGroup.removeAll();
+        mPeerRequestPending = false;
 
         mPeers = peers;
         mConnectedDevices = 0;
+        final HashMap<String, WifiP2pPeer> previous = new HashMap<String, WifiP2pPeer>(mPeerPrefs);
+        mPeerPrefs.clear();
         for (WifiP2pDevice peer: peers.getDeviceList()) {
             if (DBG) Log.d(TAG, " peer " + peer);
-            mPeersGroup.addPreference(new WifiP2pPeer(getActivity(), peer));
+            WifiP2pPeer peerPref = previous.remove(peer.deviceAddress);
+            if (peerPref != null) {
+                peerPref.update(peer);
+            } else {
+                peerPref = new WifiP2pPeer(getActivity(), peer);
+                mPeersGroup.addPreference(peerPref);
+            }
+            mPeerPrefs.put(peer.deviceAddress, peerPref);
             if (peer.status == WifiP2pDevice.CONNECTED) mConnectedDevices++;
         }
+        for (WifiP2pPeer peerPref : previous.values()) {
+            mPeersGroup.removePreference(peerPref);
+        }
         if (DBG) Log.d(TAG, " mConnectedDevices " + mConnectedDevices);
+
+        if (mPeersChanged) {
+            requestPeers();
+        }
     }
 
     public void onPersistentGroupInfoAvailable(WifiP2pGroupList groups) {
@@ -507,7 +554,8 @@ public class WifiP2pSettings extends SettingsPreferenceFragment
             preferenceScreen.addPreference(mPersistentGroup);
 
             /* Request latest set of peers */
-            mWifiP2pManager.requestPeers(mChannel, WifiP2pSettings.this);
+            mPeerRequestPending = false;
+            requestPeers();
         }
     }
 